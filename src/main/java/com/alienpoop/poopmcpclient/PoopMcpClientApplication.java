@@ -1,11 +1,15 @@
 package com.alienpoop.poopmcpclient;
 
 import io.github.cdimascio.dotenv.Dotenv;
+import org.springframework.ai.mcp.client.autoconfigure.McpClientAutoConfiguration;
+import org.springframework.ai.mcp.client.autoconfigure.McpToolCallbackAutoConfiguration;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
-@SpringBootApplication
+// MCP 客户端由 ToolCallbackService 自行创建，以便断线后重建
+@SpringBootApplication(
+    exclude = {McpClientAutoConfiguration.class, McpToolCallbackAutoConfiguration.class})
 @EnableScheduling
 public class PoopMcpClientApplication {
 
@@ -2,43 +2,52 @@ package com.alienpoop.poopmcpclient.controller;
 
 import cn.hutool.core.date.StopWatch;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.http.HttpRequest;
-import cn.hutool.json.JSONArray;
-import cn.hutool.json.JSONObject;
 import com.alienpoop.poopmcpclient.dto.AiMessageParams;
+import com.alienpoop.poopmcpclient.service.ChatAdmissionLimiter;
+import com.alienpoop.poopmcpclient.service.ChatAdmissionLimiter.AdmissionRejectedException;
+import com.alienpoop.poopmcpclient.service.ChatAdmissionLimiter.Permit;
+import com.alienpoop.poopmcpclient.service.ChatHistoryService;
+import com.alienpoop.poopmcpclient.service.ContextAssembler;
+import com.alienpoop.poopmcpclient.service.ContextPacker;
+import com.alienpoop.poopmcpclient.service.ContextAssembler.PromptContext;
+import com.alienpoop.poopmcpclient.service.KnowledgeSearchService;
+import com.alienpoop.poopmcpclient.service.OllamaResidencyManager;
+import com.alienpoop.poopmcpclient.service.ParallelToolCallingManager;
+import com.alienpoop.poopmcpclient.service.ResponseCache;
+import com.alienpoop.poopmcpclient.service.RoutingChatModel;
+import com.alienpoop.poopmcpclient.service.SseFrameEncoder;
 import com.alienpoop.poopmcpclient.service.ToolCallbackService;
+import com.alienpoop.poopmcpclient.service.ToolSelector;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.http.HttpServletRequest;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.stream.IntStream;
+import java.util.function.Consumer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.metadata.Usage;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.ai.chat.prompt.Prompt;
-import org.springframework.ai.chat.prompt.SystemPromptTemplate;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.ollama.api.OllamaOptions;
 import org.springframework.ai.tool.ToolCallbackProvider;
 import org.springframework.ai.vectorstore.SearchRequest;
-import org.springframework.ai.vectorstore.VectorStore;
-import org.springframework.ai.vectorstore.filter.Filter;
-import org.springframework.ai.vectorstore.filter.FilterExpressionBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.codec.ServerSentEvent;
@@ -48,20 +57,41 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
 
 @RestController
 @Slf4j
 @EnableScheduling
 public class InferenceController {
 
-  @Autowired private VectorStore vectorStore;
+  @Autowired private KnowledgeSearchService knowledgeSearchService;
   @Autowired private ToolCallbackProvider toolCallbackProvider;
-  @Autowired private ChatModel chatModel;
+  @Autowired private RoutingChatModel chatModel;
   @Autowired private ObjectMapper objectMapper;
 
   @Autowired private ApplicationContext applicationContext;
 
   @Autowired private ToolCallbackService toolCallbackService;
+  @Autowired private ParallelToolCallingManager toolCallingManager;
+  @Autowired private ToolSelector toolSelector;
+
+  @Autowired private SseFrameEncoder sseFrameEncoder;
+
+  @Autowired private ContextAssembler contextAssembler;
+
+  @Autowired private ChatHistoryService chatHistoryService;
+
+  @Autowired private ContextPacker contextPacker;
+
+  @Autowired private OllamaResidencyManager ollamaResidencyManager;
+
+  @Autowired private ChatAdmissionLimiter admissionLimiter;
+
+  @Autowired private ResponseCache responseCache;
+
+  // 多召回一些候选，交给 ContextPacker 去重并按 token 预算裁剪
+  @Value("${knowledge.context.candidates:20}")
+  private int contextCandidates;
 
   @Value("${spring.ai.ollama.chat.model}")
   private String model;
@@ -69,23 +99,94 @@ public class InferenceController {
   @Value("${hyperAGI.api}")
   private String hyperAGIAPI;
 
+  // 使用模型原生流式输出，关闭后回退为整段生成后逐字回放
+  @Value("${inference.stream.native:true}")
+  private boolean nativeStreaming;
+
   // Request counter metrics
   private final LongAdder requestCounter = new LongAdder();
   private final AtomicLong pendingRequests = new AtomicLong(0);
   private final LongAdder totalRequestsLastPeriod = new LongAdder();
 
   @PostMapping(value = "asyncChat", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-  public Flux<ServerSentEvent<String>> asyncChat(
+  public ResponseEntity<Flux<ServerSentEvent<String>>> asyncChat(
       @RequestBody AiMessageParams messageParams, HttpServletRequest request) {
 
     // 验证输入参数
     if (messageParams == null) {
       log.error("AiMessageParams is null");
-      return Flux.just(
-          ServerSentEvent.builder("{\"error\": \"Invalid input: AiMessageParams is null\"}")
-              .event("error")
-              .build());
+      return ResponseEntity.ok(
+          Flux.just(sseFrameEncoder.error("Invalid input: AiMessageParams is null")));
+    }
+
+    ResponseCache.Scope cacheScope = cacheScopeOf(messageParams);
+    ResponseCache.Flight leader = null;
+    if (cacheScope != null) {
+      String cached = responseCache.get(cacheScope, messageParams.getTextContent());
+      if (cached != null) {
+        return ResponseEntity.ok(cachedReply(messageParams, cached));
+      }
+      ResponseCache.Flight flight = responseCache.join(cacheScope, messageParams.getTextContent());
+      if (!flight.isLeader()) {
+        // 相同请求正在生成，不占用请求线程等待其结果；失败或超时则自行生成
+        return ResponseEntity.ok(
+            flight
+                .reply()
+                .flatMapMany(reply -> cachedReply(messageParams, reply))
+                .switchIfEmpty(
+                    Flux.defer(() -> generate(messageParams, request, null).getBody())
+                        .subscribeOn(Schedulers.boundedElastic())));
+      }
+      leader = flight;
+    }
+    return generate(messageParams, request, leader);
+  }
+
+  private Flux<ServerSentEvent<String>> cachedReply(AiMessageParams messageParams, String reply) {
+    rememberTurn(messageParams, reply);
+    return sseFrameEncoder
+        .encodeMessages(Flux.just(reply))
+        .concatWith(Flux.just(sseFrameEncoder.metadata(null, null)));
+  }
+
+  /** Generates a reply under an admission permit; {@code leader} receives it if not null. */
+  private ResponseEntity<Flux<ServerSentEvent<String>>> generate(
+      AiMessageParams messageParams, HttpServletRequest request, ResponseCache.Flight leader) {
+    Permit permit;
+    try {
+      permit = admissionLimiter.acquire(model, tenantOf(messageParams));
+    } catch (AdmissionRejectedException e) {
+      abandon(leader);
+      return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+          .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+          .body(Flux.just(sseFrameEncoder.error(e.getMessage())));
+    } catch (InterruptedException e) {
+      abandon(leader);
+      Thread.currentThread().interrupt();
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .body(Flux.just(sseFrameEncoder.error("Interrupted while waiting for a chat slot")));
     }
+    Consumer<String> onReply =
+        reply -> {
+          rememberTurn(messageParams, reply);
+          if (leader != null) {
+            leader.complete(reply);
+          }
+        };
+    return ResponseEntity.ok(
+        chat(messageParams, request, permit, onReply)
+            .doFinally(
+                signal -> {
+                  permit.release();
+                  abandon(leader);
+                }));
+  }
+
+  private Flux<ServerSentEvent<String>> chat(
+      AiMessageParams messageParams,
+      HttpServletRequest request,
+      Permit permit,
+      Consumer<String> onReply) {
 
     // 禁用 cogito:32b 的工具调用以确保兼容性
     if (model.equals("deepseek-r1:32b")) {
@@ -104,50 +205,27 @@ public class InferenceController {
       log.info("Request IP: {}", getClientIP(request));
       log.info("Request textContent: {}", messageParams.getTextContent());
 
-      List<org.springframework.ai.chat.messages.Message> messages = new ArrayList<>();
-
-      if (Boolean.FALSE.equals(messageParams.getOnlyTool())) {
-        String sessionId =
-            messageParams.getSessionId() != null ? messageParams.getSessionId() : "default_session";
-        String userId =
-            messageParams.getAssistantId() != null
-                ? messageParams.getAssistantId()
-                : "default_user";
-        String textContent =
-            messageParams.getTextContent() != null ? messageParams.getTextContent() : "";
-        String customSystemPrompt =
-            messageParams.getContent() != null ? messageParams.getContent() : "";
-
-        String userText = toPrompt(messageParams);
-        String chatHistory = useChatHistory(sessionId, 30);
-        String vectorContext =
-            useVectorStore(messageParams.getEnableVectorStore(), userId, textContent);
-
-        SystemPromptTemplate systemPromptTemplate =
-            new SystemPromptTemplate(getSystemPromptTemplate());
-        Map<String, Object> systemPromptParams = new HashMap<>();
-        systemPromptParams.put("context", vectorContext);
-        systemPromptParams.put("chatHistory", chatHistory);
-        systemPromptParams.put("customSystemPrompt", customSystemPrompt);
-        systemPromptParams.put("userText", userText);
-        Prompt systemPrompt = systemPromptTemplate.create(systemPromptParams);
-
-        messages.add(systemPrompt.getInstructions().get(0));
-      } else {
-        String userText = toPrompt(messageParams);
-        messages.add(new org.springframework.ai.chat.messages.UserMessage(userText));
-      }
+      List<org.springframework.ai.chat.messages.Message> messages = buildMessages(messageParams);
 
-      OllamaOptions chatOptions = OllamaOptions.builder().build();
+      OllamaOptions chatOptions = ollamaResidencyManager.chatOptions().build();
       if (messageParams.getEnableTool() || messageParams.getOnlyTool()) {
-        chatOptions.setToolCallbacks(toolCallbackService.getFunctionCallbackList());
+        chatOptions.setToolCallbacks(toolSelector.select(messageParams.getTextContent()));
+        chatOptions.setToolContext(toolCallingManager.loopContext());
       }
 
       Prompt prompt = new Prompt(messages, chatOptions);
 
+      ChatClient chatClient =
+          ChatClient.builder(chatModel.withAffinity(messageParams.getSessionId())).build();
+
+      if (nativeStreaming) {
+        return streamChat(chatClient, prompt, watch, permit, onReply);
+      }
+
       // 使用同步调用获取完整响应
-      ChatClient chatClient = ChatClient.builder(chatModel).build();
       ChatResponse chatResponse = chatClient.prompt(prompt).call().chatResponse();
+      // 生成已结束，回放期间不再占用模型名额；整段生成耗时与首 token 延迟不可比，不作为限流样本
+      permit.release();
 
       // 检查响应是否有效
       String content =
@@ -158,57 +236,26 @@ public class InferenceController {
               : "";
       if (content.isEmpty()) {
         log.warn("Empty chatResponse content");
-        return Flux.just(
-            ServerSentEvent.builder("{\"error\": \"No content received\"}").event("error").build());
+        return Flux.just(sseFrameEncoder.error("No content received"));
       }
 
       // 模拟流式输出
       Flux<ServerSentEvent<String>> contentFlux =
           Flux.fromStream(content.chars().mapToObj(ch -> String.valueOf((char) ch)))
-              .map(
-                  charContent -> {
-                    try {
-                      Map<String, Object> response = new HashMap<>();
-                      response.put("content", charContent);
-                      String json = objectMapper.writeValueAsString(response);
-                      log.debug("Sending content event: {}", json);
-                      return ServerSentEvent.builder(json).event("message").build();
-                    } catch (JsonProcessingException e) {
-                      log.error("JSON serialization error: {}", e.getMessage(), e);
-                      return ServerSentEvent.builder("{\"error\": \"Serialization error\"}")
-                          .event("error")
-                          .build();
-                    }
-                  })
+              .map(sseFrameEncoder::message)
               .delayElements(Duration.ofMillis(50)); // 模拟流式输出的延迟
 
       // 处理元数据
       Object metadata =
           chatResponse.getMetadata() != null ? chatResponse.getMetadata().getUsage() : null;
       Flux<ServerSentEvent<String>> metadataFlux =
-          Flux.just(metadata)
-              .map(
-                  meta -> {
-                    try {
-                      Map<String, Object> metadataResponse = new HashMap<>();
-                      metadataResponse.put(
-                          "metadata", meta != null ? meta : "No metadata available");
-                      String json = objectMapper.writeValueAsString(metadataResponse);
-                      log.debug("Sending metadata event: {}", json);
-                      return ServerSentEvent.builder(json).event("metadata").build();
-                    } catch (JsonProcessingException e) {
-                      log.error("JSON serialization error for metadata: {}", e.getMessage(), e);
-                      return ServerSentEvent.builder(
-                              "{\"error\": \"Metadata serialization error\"}")
-                          .event("error")
-                          .build();
-                    }
-                  });
+          Flux.just(sseFrameEncoder.metadata(metadata, null));
 
       return contentFlux
           .concatWith(metadataFlux)
           .doOnComplete(
               () -> {
+                onReply.accept(content);
                 watch.stop();
                 log.info(watch.prettyPrint(TimeUnit.SECONDS));
                 pendingRequests.decrementAndGet();
@@ -220,11 +267,96 @@ public class InferenceController {
       if (e.getCause() instanceof InterruptedException) {
         initiateShutdown();
       }
-      return Flux.just(
-          ServerSentEvent.builder("{\"error\": \"" + e.getMessage() + "\"}")
-              .event("error")
-              .build());
+      return Flux.just(sseFrameEncoder.error(e.getMessage()));
+    }
+  }
+
+  /**
+   * Forwards model deltas to the client as they are generated. Tool calls requested by the model
+   * are executed by the chat model inside the same stream, so the deltas of every tool-call round
+   * arrive on this flux. The final {@code metadata} event carries the usage of the last round and
+   * the time to first token.
+   */
+  private Flux<ServerSentEvent<String>> streamChat(
+      ChatClient chatClient,
+      Prompt prompt,
+      StopWatch watch,
+      Permit permit,
+      Consumer<String> onReply) {
+    long startNanos = System.nanoTime();
+    StringBuilder reply = new StringBuilder();
+    AtomicLong firstTokenNanos = new AtomicLong(-1);
+    AtomicInteger toolCallRounds = new AtomicInteger();
+    AtomicReference<Usage> usage = new AtomicReference<>();
+
+    Flux<String> deltas =
+        chatClient.prompt(prompt).stream()
+            .chatResponse()
+            .doOnNext(
+                chatResponse -> {
+                  if (chatResponse.getMetadata() != null) {
+                    Usage chunkUsage = chatResponse.getMetadata().getUsage();
+                    if (chunkUsage != null
+                        && chunkUsage.getTotalTokens() != null
+                        && chunkUsage.getTotalTokens() > 0) {
+                      usage.set(chunkUsage);
+                    }
+                  }
+                  if (chatResponse.getResult() != null
+                      && chatResponse.getResult().getOutput().hasToolCalls()) {
+                    toolCallRounds.incrementAndGet();
+                    log.info("Tool Calls: {}", chatResponse.getResult().getOutput().getToolCalls());
+                  }
+                })
+            .map(InferenceController::deltaText)
+            .filter(delta -> !delta.isEmpty())
+            .doOnNext(
+                delta -> {
+                  reply.append(delta);
+                  if (firstTokenNanos.compareAndSet(-1, System.nanoTime())) {
+                    permit.recordLatency();
+                    log.info(
+                        "Time to first token: {} ms",
+                        TimeUnit.NANOSECONDS.toMillis(firstTokenNanos.get() - startNanos));
+                  }
+                });
+
+    Flux<ServerSentEvent<String>> tailFlux =
+        Flux.defer(
+            () -> {
+              if (firstTokenNanos.get() < 0) {
+                log.warn("Empty chatResponse content");
+                return Flux.just(sseFrameEncoder.error("No content received"));
+              }
+              long ttftMillis = TimeUnit.NANOSECONDS.toMillis(firstTokenNanos.get() - startNanos);
+              log.info("Stream completed, tool call rounds: {}", toolCallRounds.get());
+              onReply.accept(reply.toString());
+              return Flux.just(sseFrameEncoder.metadata(usage.get(), ttftMillis));
+            });
+
+    return sseFrameEncoder
+        .encodeMessages(deltas)
+        .concatWith(tailFlux)
+        .onErrorResume(
+            e -> {
+              log.error("ChatClient stream error: {}", e.getMessage(), e);
+              return Flux.just(sseFrameEncoder.error(e.getMessage()));
+            })
+        .doFinally(
+            signal -> {
+              watch.stop();
+              log.info(watch.prettyPrint(TimeUnit.SECONDS));
+              pendingRequests.decrementAndGet();
+            });
+  }
+
+  private static String deltaText(ChatResponse chatResponse) {
+    if (chatResponse.getResult() == null
+        || chatResponse.getResult().getOutput() == null
+        || chatResponse.getResult().getOutput().getText() == null) {
+      return "";
     }
+    return chatResponse.getResult().getOutput().getText();
   }
 
   //  @PostMapping(value = "asyncChat", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
@@ -422,6 +554,68 @@ public class InferenceController {
   @PostMapping(value = "syncChat", produces = MediaType.APPLICATION_JSON_VALUE)
   public ResponseEntity<String> syncChat(
       @RequestBody AiMessageParams messageParams, HttpServletRequest request) {
+    ResponseCache.Scope cacheScope = cacheScopeOf(messageParams);
+    ResponseCache.Flight flight = null;
+    if (cacheScope != null) {
+      String cached = responseCache.get(cacheScope, messageParams.getTextContent());
+      if (cached == null) {
+        flight = responseCache.join(cacheScope, messageParams.getTextContent());
+        if (!flight.isLeader()) {
+          cached = flight.await();
+          flight = null;
+        }
+      }
+      if (cached != null) {
+        rememberTurn(messageParams, cached);
+        try {
+          Map<String, Object> response = new HashMap<>();
+          response.put("content", cached);
+          response.put("metadata", new HashMap<>());
+          response.put("cached", true);
+          return ResponseEntity.ok(objectMapper.writeValueAsString(response));
+        } catch (JsonProcessingException e) {
+          return ResponseEntity.status(500).body("{\"error\": \"" + e.getMessage() + "\"}");
+        }
+      }
+    }
+    ResponseCache.Flight leader = flight;
+
+    Permit permit;
+    try {
+      permit = admissionLimiter.acquire(model, tenantOf(messageParams));
+    } catch (AdmissionRejectedException e) {
+      abandon(leader);
+      return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+          .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+          .body("{\"error\": \"" + e.getMessage() + "\"}");
+    } catch (InterruptedException e) {
+      abandon(leader);
+      Thread.currentThread().interrupt();
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .body("{\"error\": \"Interrupted while waiting for a chat slot\"}");
+    }
+    try {
+      return doSyncChat(
+          messageParams,
+          request,
+          permit,
+          reply -> {
+            rememberTurn(messageParams, reply);
+            if (leader != null) {
+              leader.complete(reply);
+            }
+          });
+    } finally {
+      permit.release();
+      abandon(leader);
+    }
+  }
+
+  private ResponseEntity<String> doSyncChat(
+      AiMessageParams messageParams,
+      HttpServletRequest request,
+      Permit permit,
+      Consumer<String> onReply) {
     Instant startTime = Instant.now();
     requestCounter.increment();
     pendingRequests.incrementAndGet();
@@ -441,49 +635,19 @@ public class InferenceController {
 
       watch.start("syncChat:" + getClientIP(request));
 
-      List<org.springframework.ai.chat.messages.Message> messages = new ArrayList<>();
-
-      if (Boolean.FALSE.equals(messageParams.getOnlyTool())) {
-        String sessionId =
-            messageParams.getSessionId() != null ? messageParams.getSessionId() : "default_session";
-        String userId =
-            messageParams.getAssistantId() != null
-                ? messageParams.getAssistantId()
-                : "default_user";
-        String textContent =
-            messageParams.getTextContent() != null ? messageParams.getTextContent() : "";
-        String customSystemPrompt =
-            messageParams.getContent() != null ? messageParams.getContent() : "";
-
-        String userText = toPrompt(messageParams);
-        String chatHistory = useChatHistory(sessionId, 30);
-        String vectorContext =
-            useVectorStore(messageParams.getEnableVectorStore(), userId, textContent);
-
-        SystemPromptTemplate systemPromptTemplate =
-            new SystemPromptTemplate(getSystemPromptTemplate());
-        Map<String, Object> systemPromptParams = new HashMap<>();
-        systemPromptParams.put("context", vectorContext);
-        systemPromptParams.put("chatHistory", chatHistory);
-        systemPromptParams.put("customSystemPrompt", customSystemPrompt);
-        systemPromptParams.put("userText", userText);
-        Prompt systemPrompt = systemPromptTemplate.create(systemPromptParams);
-
-        messages.add(systemPrompt.getInstructions().get(0));
-      } else {
-        String userText = toPrompt(messageParams);
-        messages.add(new org.springframework.ai.chat.messages.UserMessage(userText));
-      }
+      List<org.springframework.ai.chat.messages.Message> messages = buildMessages(messageParams);
 
-      OllamaOptions chatOptions = OllamaOptions.builder().build();
+      OllamaOptions chatOptions = ollamaResidencyManager.chatOptions().build();
 
       if (messageParams.getEnableTool() || messageParams.getOnlyTool()) {
-        chatOptions.setToolCallbacks(toolCallbackService.getFunctionCallbackList());
+        chatOptions.setToolCallbacks(toolSelector.select(messageParams.getTextContent()));
+        chatOptions.setToolContext(toolCallingManager.loopContext());
       }
 
       Prompt prompt = new Prompt(messages, chatOptions);
 
-      ChatClient chatClient = ChatClient.builder(chatModel).build();
+      ChatClient chatClient =
+          ChatClient.builder(chatModel.withAffinity(messageParams.getSessionId())).build();
       ChatResponse chatResponse = chatClient.prompt(prompt).call().chatResponse();
 
       if (chatResponse.getResult() != null
@@ -499,6 +663,7 @@ public class InferenceController {
         log.warn("Empty chatResponse content");
         return ResponseEntity.ok("{\"error\": \"Empty response\"}");
       }
+      onReply.accept(responseContent);
       Object metadata =
           chatResponse.getMetadata() != null && chatResponse.getMetadata().getUsage() != null
               ? chatResponse.getMetadata().getUsage()
@@ -541,81 +706,133 @@ public class InferenceController {
         currentPending);
   }
 
-  public String toPrompt(AiMessageParams input) {
-    return input.getTextContent();
+  /**
+   * Builds the prompt messages. Chat history, vector context and the system prompt template are
+   * looked up concurrently by the {@link ContextAssembler}.
+   */
+  private List<org.springframework.ai.chat.messages.Message> buildMessages(
+      AiMessageParams messageParams) {
+    List<org.springframework.ai.chat.messages.Message> messages = new ArrayList<>();
+
+    if (Boolean.FALSE.equals(messageParams.getOnlyTool())) {
+      String sessionId =
+          messageParams.getSessionId() != null ? messageParams.getSessionId() : "default_session";
+      String userId =
+          messageParams.getAssistantId() != null ? messageParams.getAssistantId() : "default_user";
+      String textContent =
+          messageParams.getTextContent() != null ? messageParams.getTextContent() : "";
+      String customSystemPrompt =
+          messageParams.getContent() != null ? messageParams.getContent() : "";
+
+      String userText = toPrompt(messageParams);
+      PromptContext promptContext =
+          contextAssembler.assemble(
+              () -> useChatHistory(sessionId, 30),
+              () ->
+                  useVectorStore(
+                      messageParams.getEnableVectorStore(),
+                      userId,
+                      textContent,
+                      messageParams.getRetrievalMode()));
+
+      Map<String, Object> systemPromptParams = new HashMap<>();
+      systemPromptParams.put("context", promptContext.vectorContext());
+      systemPromptParams.put("chatHistory", promptContext.chatHistory());
+      systemPromptParams.put("customSystemPrompt", customSystemPrompt);
+      systemPromptParams.put("userText", userText);
+
+      messages.addAll(contextAssembler.createMessages(promptContext, systemPromptParams));
+    } else {
+      String userText = toPrompt(messageParams);
+      messages.add(new org.springframework.ai.chat.messages.UserMessage(userText));
+    }
+    return messages;
   }
 
-  public String useVectorStore(Boolean enableVectorStore, String assistantId, String userText) {
-    if (!enableVectorStore) return "";
+  /**
+   * Cache scope of a stateless request (tool-only, or a session without history), or null when
+   * the reply depends on chat history and must not be cached.
+   */
+  private ResponseCache.Scope cacheScopeOf(AiMessageParams messageParams) {
+    if (!responseCache.isEnabled() || StrUtil.isBlank(messageParams.getTextContent())) {
+      return null;
+    }
+    boolean onlyTool = Boolean.TRUE.equals(messageParams.getOnlyTool());
+    if (!onlyTool) {
+      String sessionId =
+          messageParams.getSessionId() != null ? messageParams.getSessionId() : "default_session";
+      // 只看内存中的会话缓存，不在请求线程上再取一次历史；未缓存的会话视为不可缓存
+      if (!chatHistoryService.isCachedEmpty(sessionId)) {
+        return null;
+      }
+    }
+    boolean enableVectorStore = Boolean.TRUE.equals(messageParams.getEnableVectorStore());
+    // 知识库更新后旧回复不再命中
+    long generation =
+        enableVectorStore
+            ? knowledgeSearchService.getGeneration(messageParams.getAssistantId())
+            : 0;
+    return new ResponseCache.Scope(
+        model,
+        messageParams.getAssistantId(),
+        messageParams.getContent(),
+        onlyTool,
+        Boolean.TRUE.equals(messageParams.getEnableTool()),
+        enableVectorStore,
+        messageParams.getRetrievalMode(),
+        generation);
+  }
 
-    FilterExpressionBuilder b = new FilterExpressionBuilder();
-    Filter.Expression exp = b.eq("assistantId", assistantId).build();
-    log.info("filterExpression: {}", exp);
+  private static void abandon(ResponseCache.Flight flight) {
+    if (flight != null) {
+      flight.abandon();
+    }
+  }
 
-    SearchRequest searchRequest =
-        SearchRequest.builder()
-            .similarityThreshold(0)
-            .query(userText)
-            .filterExpression(exp)
-            .build();
+  /** Fair-queuing key: the user, or the assistant for anonymous requests. */
+  private static String tenantOf(AiMessageParams messageParams) {
+    if (StrUtil.isNotBlank(messageParams.getUserId())) {
+      return "user:" + messageParams.getUserId();
+    }
+    return StrUtil.isNotBlank(messageParams.getAssistantId())
+        ? "assistant:" + messageParams.getAssistantId()
+        : null;
+  }
 
-    List<Document> documentList = vectorStore.similaritySearch(searchRequest);
-    List<String> texts = documentList.stream().map(Document::getText).toList();
+  public String toPrompt(AiMessageParams input) {
+    return input.getTextContent();
+  }
 
-    log.info("texts: {}", StrUtil.join(",", texts));
+  public String useVectorStore(
+      Boolean enableVectorStore, String assistantId, String userText, String retrievalMode) {
+    if (!enableVectorStore) return "";
+
+    List<Document> documentList =
+        knowledgeSearchService.search(
+            assistantId,
+            userText,
+            contextCandidates,
+            SearchRequest.SIMILARITY_THRESHOLD_ACCEPT_ALL,
+            retrievalMode);
+    if (documentList.isEmpty()) return "";
 
-    return String.join("\n", texts);
+    return contextPacker.pack(userText, documentList).text();
   }
 
   public String useChatHistory(String sessionId, Integer pageSize) {
-    String body =
-        HttpRequest.get(hyperAGIAPI + "/mgn/aiMessage/list")
-            .form("pageNo", "1")
-            .form("pageSize", pageSize.toString())
-            .form("aiSessionId", sessionId)
-            .form("column", "created_time")
-            .timeout(10000)
-            .execute()
-            .body();
-
-    JSONObject result = new JSONObject(body);
-    JSONArray records = result.getJSONObject("result").getJSONArray("records");
-
-    Collections.reverse(records);
-
-    List<String> chatMemoryList =
-        records.stream()
-            .map(
-                record -> {
-                  JSONObject i = (JSONObject) record;
-                  return i.getStr("type") + ":" + i.getStr("textContent");
-                })
-            .toList();
-
-    List<String> swappedChatMemoryList =
-        IntStream.range(0, chatMemoryList.size() / 2)
-            .mapToObj(
-                i -> {
-                  int index = i * 2;
-                  return Arrays.asList(chatMemoryList.get(index + 1), chatMemoryList.get(index));
-                })
-            .flatMap(List::stream)
-            .toList();
-
-    return String.join("\n", swappedChatMemoryList);
+    return chatHistoryService.getChatHistory(sessionId, pageSize);
   }
 
-  private String getSystemPromptTemplate() {
-    String body =
-        HttpRequest.get(hyperAGIAPI + "/sys/dict/getDictText/sys_config/SYSTEM_PROMPT_TEMPLATE")
-            .timeout(10000)
-            .execute()
-            .body();
-
-    JSONObject result = new JSONObject(body);
-    String systemPromptTemplate = result.getStr("result");
-
-    return systemPromptTemplate;
+  /** Appends a completed turn to the cached session history used by the prompt. */
+  private void rememberTurn(AiMessageParams messageParams, String reply) {
+    if (!Boolean.FALSE.equals(messageParams.getOnlyTool())) {
+      return;
+    }
+    String sessionId =
+        messageParams.getSessionId() != null ? messageParams.getSessionId() : "default_session";
+    String textContent =
+        messageParams.getTextContent() != null ? messageParams.getTextContent() : "";
+    chatHistoryService.appendTurn(sessionId, textContent, reply);
   }
 
   private void initiateShutdown() {
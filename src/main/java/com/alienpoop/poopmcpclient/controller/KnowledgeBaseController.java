@@ -1,20 +1,19 @@
 package com.alienpoop.poopmcpclient.controller;
 
 import cn.hutool.core.util.StrUtil;
-import java.util.ArrayList;
+import com.alienpoop.poopmcpclient.dto.IngestionResult;
+import com.alienpoop.poopmcpclient.service.ElasticsearchKnowledgeIndex;
+import com.alienpoop.poopmcpclient.service.IngestionJob;
+import com.alienpoop.poopmcpclient.service.IngestionJobService;
+import com.alienpoop.poopmcpclient.service.KnowledgeSearchService;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.document.Document;
-import org.springframework.ai.reader.tika.TikaDocumentReader;
-import org.springframework.ai.transformer.splitter.TokenTextSplitter;
-import org.springframework.ai.vectorstore.SearchRequest;
-import org.springframework.ai.vectorstore.VectorStore;
-import org.springframework.ai.vectorstore.filter.Filter.Expression;
-import org.springframework.ai.vectorstore.filter.FilterExpressionBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -24,7 +23,11 @@ import org.springframework.web.bind.annotation.*;
 @Slf4j
 public class KnowledgeBaseController {
 
-  @Autowired private VectorStore vectorStore;
+  @Autowired private ElasticsearchKnowledgeIndex knowledgeIndex;
+
+  @Autowired private KnowledgeSearchService knowledgeSearchService;
+
+  @Autowired private IngestionJobService ingestionJobService;
 
   // 请求体：上传文档
   @Data
@@ -38,6 +41,8 @@ public class KnowledgeBaseController {
     private String query;
     private String assistantId;
     private int topK = 5;
+    // dense / hybrid，为空时使用助手的配置
+    private String mode;
   }
 
   @PostMapping("/upload")
@@ -46,67 +51,22 @@ public class KnowledgeBaseController {
 
       log.info("request:{}", request);
 
-      FilterExpressionBuilder b = new FilterExpressionBuilder();
-
-      Expression exp = b.eq("assistantId", request.getAssistantId()).build();
-
-      log.info("filterExpression: {}", exp);
-
-      SearchRequest searchRequest =
-          SearchRequest.builder().topK(1000).filterExpression(exp).build();
-
-      List<Document> documentList = vectorStore.similaritySearch(searchRequest);
-
-      List<String> deleteIds = documentList.stream().map(Document::getId).toList();
-
-      if (!deleteIds.isEmpty()) {
-        vectorStore.delete(deleteIds);
-      }
-
-      List<Document> allSplitDocuments = new ArrayList<>();
-
-      // Get the collection of file URLs
-      String[] fileURLs = request.getFileURL().split(",");
-      for (String fileURL : fileURLs) {
-
-        if (StrUtil.isBlank(fileURL)) {
-          continue;
-        }
-
-        // Create a TikaDocumentReader for the current file URL
-        TikaDocumentReader tikaDocumentReader = new TikaDocumentReader(fileURL);
-
-        // Read and split satisfacer document
-        List<Document> splitDocuments =
-            new TokenTextSplitter(200, 200, 5, 10000, true).apply(tikaDocumentReader.read());
-
-        // Add split documents to the overall list
-        allSplitDocuments.addAll(splitDocuments);
-      }
-
-      for (Document doc : allSplitDocuments) {
-        doc.getMetadata().put("assistantId", request.getAssistantId());
-      }
-
-      log.info(
-          "allSplitDocuments: {}",
-          StrUtil.join(
-              "\n",
-              allSplitDocuments.stream().map(Document::getText).collect(Collectors.toList())));
-
-
-      if(!allSplitDocuments.isEmpty()){
-
-        vectorStore.add(allSplitDocuments);
-      }
-
+      // 增量上传：未变更的文件跳过，只嵌入新增 chunk，只删除消失的 chunk
+      // 同步接口也走任务队列，与 /jobs 共用有界的工作线程
+      IngestionJob job =
+          ingestionJobService.submit(request.getAssistantId(), request.getFileURL());
+      IngestionResult result = job.getCompletion().join();
 
       log.info("Uploaded document for assistantId: {}", request.getAssistantId());
 
-      log.info("allSplitDocuments: {}", allSplitDocuments.size());
-
       return ResponseEntity.ok(
-          Map.of("status", "success", "assistantId", request.getAssistantId()));
+          Map.of(
+              "status", "success",
+              "assistantId", request.getAssistantId(),
+              "result", result));
+    } catch (RejectedExecutionException e) {
+      return ResponseEntity.status(429)
+          .body(Map.of("error", "Too many ingestion jobs queued, retry later"));
     } catch (Exception e) {
       log.error("Error uploading document: {}", e.getMessage(), e);
       return ResponseEntity.status(500)
@@ -114,31 +74,70 @@ public class KnowledgeBaseController {
     }
   }
 
-  @PostMapping("/delete")
-  public ResponseEntity<Map<String, Object>> deleteDocument(@RequestParam String assistantId) {
+  @PostMapping("/jobs")
+  public ResponseEntity<Map<String, Object>> submitJob(@RequestBody UploadRequest request) {
     try {
+      log.info("request:{}", request);
 
-      FilterExpressionBuilder b = new FilterExpressionBuilder();
-
-      Expression exp = b.eq("assistantId", assistantId).build();
+      IngestionJob job =
+          ingestionJobService.submit(request.getAssistantId(), request.getFileURL());
 
-      log.info("filterExpression: {}", exp);
+      return ResponseEntity.accepted().body(Map.of("status", "accepted", "jobId", job.getId()));
+    } catch (RejectedExecutionException e) {
+      return ResponseEntity.status(429)
+          .body(Map.of("error", "Too many ingestion jobs queued, retry later"));
+    }
+  }
 
-      SearchRequest searchRequest =
-          SearchRequest.builder().topK(1000).filterExpression(exp).build();
+  @GetMapping("/jobs/{jobId}")
+  public ResponseEntity<Map<String, Object>> getJob(@PathVariable String jobId) {
+    IngestionJob job = ingestionJobService.getJob(jobId);
+    if (job == null) {
+      return ResponseEntity.status(404).body(Map.of("error", "Job not found: " + jobId));
+    }
+    return ResponseEntity.ok(job.snapshot());
+  }
 
-      List<Document> documentList = vectorStore.similaritySearch(searchRequest);
+  @PostMapping("/jobs/{jobId}/cancel")
+  public ResponseEntity<Map<String, Object>> cancelJob(@PathVariable String jobId) {
+    IngestionJob job = ingestionJobService.getJob(jobId);
+    if (job == null) {
+      return ResponseEntity.status(404).body(Map.of("error", "Job not found: " + jobId));
+    }
+    boolean cancelled = job.cancel();
+    log.info("Cancel ingestion job {}: {}", jobId, cancelled);
+    return ResponseEntity.ok(
+        Map.of("status", job.getStatus(), "jobId", jobId, "cancelled", cancelled));
+  }
 
-      List<String> deleteIds = documentList.stream().map(Document::getId).toList();
+  @PostMapping("/delete")
+  public ResponseEntity<Map<String, Object>> deleteDocument(@RequestParam String assistantId) {
+    if (StrUtil.isBlank(assistantId)) {
+      return ResponseEntity.badRequest().body(Map.of("error", "assistantId is required"));
+    }
+    try {
 
-      vectorStore.delete(deleteIds);
+      // 服务端 delete-by-query，不受 topK 限制，也不需要 embedding
+      // 排在该助手的上传任务之后执行，之前提交的任务不会在删除后再写回 chunk
+      long deleted =
+          ingestionJobService
+              .runExclusive(assistantId, () -> knowledgeIndex.deleteByAssistant(assistantId))
+              .join();
 
       return ResponseEntity.ok(
-          Map.of("status", "success", "message", "Documents deleted successfully"));
+          Map.of(
+              "status", "success",
+              "message", "Documents deleted successfully",
+              "deleted", deleted));
+    } catch (RejectedExecutionException e) {
+      return ResponseEntity.status(429)
+          .body(Map.of("error", "Too many ingestion jobs queued, retry later"));
     } catch (Exception e) {
       log.error("Error deleting document: {}", e.getMessage(), e);
       return ResponseEntity.status(500)
           .body(Map.of("error", "Failed to delete document: " + e.getMessage()));
+    } finally {
+      knowledgeSearchService.bumpGeneration(assistantId);
     }
   }
 
@@ -147,12 +146,8 @@ public class KnowledgeBaseController {
       @RequestBody KnowledgeBaseController.QueryRequest request) {
     try {
 
-      SearchRequest.Builder builder =
-          SearchRequest.builder().similarityThreshold(0.5).topK(request.getTopK());
-
       if (StrUtil.isNotBlank(request.getQuery())) {
 
-        builder.query(request.getQuery());
         log.info(
             "Executing query search: {} with assistantId: {}",
             request.getQuery(),
@@ -169,18 +164,19 @@ public class KnowledgeBaseController {
         }
       }
 
-      // 添加 assistantId 过滤（如果提供）
-      if (StrUtil.isNotBlank(request.getAssistantId())) {
-        FilterExpressionBuilder b = new FilterExpressionBuilder();
-        var exp = b.eq("assistantId", request.getAssistantId()).build();
-        builder.filterExpression(exp);
+      if (!KnowledgeSearchService.Mode.isValid(request.getMode())) {
+        return ResponseEntity.badRequest()
+            .body(Map.of("error", "Unknown mode: " + request.getMode() + ", use dense or hybrid"));
       }
 
-      SearchRequest searchRequest = builder.build();
-
-      log.info("searchRequest: {}", searchRequest);
-
-      List<Document> documents = vectorStore.similaritySearch(searchRequest);
+      // 按 assistantId 过滤（如果提供），结果经检索缓存
+      List<Document> documents =
+          knowledgeSearchService.search(
+              request.getAssistantId(),
+              request.getQuery(),
+              request.getTopK(),
+              0.5,
+              request.getMode());
 
       log.info(
           "Found {} documents for query: {} and assistantId: {}",
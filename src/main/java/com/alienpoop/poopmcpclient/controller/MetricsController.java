@@ -0,0 +1,25 @@
+package com.alienpoop.poopmcpclient.controller;
+
+import com.alienpoop.poopmcpclient.service.MetricsSource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class MetricsController {
+
+  @Autowired private List<MetricsSource> metricsSources;
+
+  @GetMapping("/metrics")
+  public ResponseEntity<Map<String, Object>> metrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    for (MetricsSource source : metricsSources) {
+      metrics.put(source.getMetricsName(), source.getMetrics());
+    }
+    return ResponseEntity.ok(metrics);
+  }
+}
@@ -13,4 +13,6 @@ public class AiMessageParams {
   private String sessionId;
   private String assistantId;
   private Boolean enableTool = false;
+  // 知识库检索模式：dense / hybrid，为空时使用助手的配置
+  private String retrievalMode;
 }
@@ -0,0 +1,4 @@
+package com.alienpoop.poopmcpclient.dto;
+
+/** One message of a HyperAGI chat session, reduced to the fields the prompt uses. */
+public record ChatRecord(String type, String textContent) {}
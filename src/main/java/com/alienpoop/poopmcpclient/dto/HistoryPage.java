@@ -0,0 +1,9 @@
+package com.alienpoop.poopmcpclient.dto;
+
+import java.util.List;
+
+/**
+ * A page of {@code /mgn/aiMessage/list}, newest first as returned by HyperAGI. {@code total} is
+ * null when the response does not report it.
+ */
+public record HistoryPage(List<ChatRecord> records, Long total) {}
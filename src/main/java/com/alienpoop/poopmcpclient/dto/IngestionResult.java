@@ -0,0 +1,17 @@
+package com.alienpoop.poopmcpclient.dto;
+
+import java.util.Map;
+
+/**
+ * Outcome of one knowledge base upload. {@code skippedFiles} were unchanged since the last upload
+ * and not parsed; {@code keptChunks} were already indexed and not embedded again. {@code
+ * failedFiles} maps each file that could not be ingested to its error; their previously indexed
+ * chunks are left in place.
+ */
+public record IngestionResult(
+    int files,
+    int skippedFiles,
+    int addedChunks,
+    int keptChunks,
+    int deletedChunks,
+    Map<String, String> failedFiles) {}
@@ -0,0 +1,233 @@
+package com.alienpoop.poopmcpclient.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptions;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@link EmbeddingModel} that caches query and chunk embeddings by a SHA-256 of the model name and
+ * text, in front of the Ollama node pool ({@link RoutingEmbeddingModel}).
+ *
+ * <p>Lookups go to an on-heap LRU tier first and then to the optional memory-mapped disk tier
+ * ({@link EmbeddingDiskStore}); only texts missing from both are sent to Ollama, in one request.
+ * Being the primary {@code EmbeddingModel}, it also serves the Elasticsearch vector store.
+ */
+@Component
+@Primary
+@Slf4j
+public class CachingEmbeddingModel implements EmbeddingModel, MetricsSource {
+
+  @Autowired
+  @Qualifier("routingEmbeddingModel")
+  private EmbeddingModel delegate;
+
+  @Value("${spring.ai.ollama.embedding.model}")
+  private String defaultModel;
+
+  @Value("${embedding.cache.max-entries:10000}")
+  private int maxEntries;
+
+  @Value("${embedding.cache.disk.enabled:false}")
+  private boolean diskEnabled;
+
+  @Value("${embedding.cache.disk.path:./data/embedding-cache.bin}")
+  private String diskPath;
+
+  @Value("${embedding.cache.disk.capacity:65536}")
+  private int diskCapacity;
+
+  @Value("${spring.ai.vectorstore.elasticsearch.dimensions:1024}")
+  private int dimensions;
+
+  private Map<Key, float[]> heap;
+  private EmbeddingDiskStore disk;
+
+  private final LongAdder heapHits = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  private record Key(byte[] hash) {
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key other && Arrays.equals(hash, other.hash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(hash);
+    }
+  }
+
+  @PostConstruct
+  public void init() {
+    heap =
+        new LinkedHashMap<>(1024, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+            return size() > maxEntries;
+          }
+        };
+    if (diskEnabled) {
+      try {
+        disk = new EmbeddingDiskStore(Path.of(diskPath), diskCapacity, dimensions);
+      } catch (IOException | RuntimeException e) {
+        log.error("Embedding disk cache disabled, failed to open {}: {}", diskPath, e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public EmbeddingResponse call(EmbeddingRequest request) {
+    List<String> texts = request.getInstructions();
+    String model = modelOf(request.getOptions());
+
+    float[][] vectors = new float[texts.size()][];
+    Key[] keys = new Key[texts.size()];
+    Map<Key, List<Integer>> missing = new LinkedHashMap<>();
+    List<String> missingTexts = new ArrayList<>();
+
+    for (int i = 0; i < texts.size(); i++) {
+      keys[i] = key(model, texts.get(i));
+      vectors[i] = lookup(keys[i]);
+      if (vectors[i] == null) {
+        List<Integer> positions = missing.computeIfAbsent(keys[i], k -> new ArrayList<>());
+        if (positions.isEmpty()) {
+          missingTexts.add(texts.get(i));
+        }
+        positions.add(i);
+      }
+    }
+
+    if (!missingTexts.isEmpty()) {
+      misses.add(missingTexts.size());
+      EmbeddingResponse response =
+          delegate.call(new EmbeddingRequest(missingTexts, request.getOptions()));
+      List<Key> missingKeys = new ArrayList<>(missing.keySet());
+      for (Embedding embedding : response.getResults()) {
+        int index = embedding.getIndex() != null ? embedding.getIndex() : 0;
+        Key key = missingKeys.get(index);
+        store(key, embedding.getOutput());
+        for (int position : missing.get(key)) {
+          vectors[position] = embedding.getOutput();
+        }
+      }
+    }
+
+    List<Embedding> embeddings = new ArrayList<>(texts.size());
+    for (int i = 0; i < vectors.length; i++) {
+      embeddings.add(new Embedding(vectors[i], i));
+    }
+    return new EmbeddingResponse(embeddings);
+  }
+
+  @Override
+  public float[] embed(Document document) {
+    return embed(document.getText());
+  }
+
+  @Override
+  public int dimensions() {
+    return delegate.dimensions();
+  }
+
+  private float[] lookup(Key key) {
+    float[] vector;
+    synchronized (heap) {
+      vector = heap.get(key);
+    }
+    if (vector != null) {
+      heapHits.increment();
+      return vector;
+    }
+    if (disk != null) {
+      vector = disk.get(key.hash());
+      if (vector != null) {
+        diskHits.increment();
+        synchronized (heap) {
+          heap.put(key, vector);
+        }
+        return vector;
+      }
+    }
+    return null;
+  }
+
+  private void store(Key key, float[] vector) {
+    synchronized (heap) {
+      heap.put(key, vector);
+    }
+    if (disk != null) {
+      disk.put(key.hash(), vector);
+    }
+  }
+
+  private String modelOf(EmbeddingOptions options) {
+    return options != null && options.getModel() != null ? options.getModel() : defaultModel;
+  }
+
+  private static Key key(String model, String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(model.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(text.getBytes(StandardCharsets.UTF_8));
+      return new Key(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "embeddingCache";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    synchronized (heap) {
+      metrics.put("heapEntries", heap.size());
+    }
+    metrics.put("heapHits", heapHits.sum());
+    metrics.put("diskHits", diskHits.sum());
+    metrics.put("misses", misses.sum());
+    metrics.put("diskEnabled", disk != null);
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logCacheMetrics() {
+    log.info("Embedding Cache: {}", getMetrics());
+  }
+
+  @PreDestroy
+  public void shutdown() throws IOException {
+    if (disk != null) {
+      disk.close();
+    }
+  }
+}
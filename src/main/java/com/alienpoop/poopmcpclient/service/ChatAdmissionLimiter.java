@@ -0,0 +1,291 @@
+package com.alienpoop.poopmcpclient.service;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control for chat requests: at most {@code limit} requests per model run at once, at
+ * most {@code max-queued} wait, and the rest are rejected right away with a retry hint instead of
+ * holding a request thread until Ollama times out.
+ *
+ * <p>Waiting requests are queued per tenant (the {@code userId}, or the {@code assistantId} when
+ * there is none) and a freed slot goes to the next tenant in round-robin order, so one busy tenant
+ * cannot starve the others. With {@code adaptive.enabled} the limit follows the observed latency:
+ * it shrinks while the latency average is more than {@code tolerance} times the best recent
+ * latency and grows back by one slot otherwise. The latency is the time to the first streamed
+ * token; blocking generations only finish as a whole and record no sample.
+ */
+@Component
+@Slf4j
+public class ChatAdmissionLimiter implements MetricsSource {
+
+  @Value("${inference.admission.enabled:true}")
+  private boolean enabled;
+
+  @Value("${inference.admission.max-concurrent:8}")
+  private int maxConcurrent;
+
+  @Value("${inference.admission.max-queued:64}")
+  private int maxQueued;
+
+  @Value("${inference.admission.queue-timeout:30s}")
+  private Duration queueTimeout;
+
+  @Value("${inference.admission.adaptive.enabled:false}")
+  private boolean adaptive;
+
+  @Value("${inference.admission.adaptive.min-limit:2}")
+  private int minLimit;
+
+  @Value("${inference.admission.adaptive.max-limit:32}")
+  private int maxLimit;
+
+  @Value("${inference.admission.adaptive.tolerance:2.0}")
+  private double tolerance;
+
+  private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+  /** Thrown when a request is not admitted; maps to 429 with {@code Retry-After}. */
+  public static class AdmissionRejectedException extends RejectedExecutionException {
+    private final long retryAfterSeconds;
+
+    AdmissionRejectedException(String message, long retryAfterSeconds) {
+      super(message);
+      this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+      return retryAfterSeconds;
+    }
+  }
+
+  /** A granted slot; release it exactly once when the request has finished. */
+  public static final class Permit {
+    private final Limiter limiter;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile double latencyMs = -1;
+
+    private Permit(Limiter limiter) {
+      this.limiter = limiter;
+    }
+
+    /**
+     * Records the time to first token as the latency sample for the adaptive limit. Only streamed
+     * replies call this, so every sample measures the same thing.
+     */
+    public void recordLatency() {
+      if (latencyMs < 0) {
+        latencyMs = (System.nanoTime() - startNanos) / 1e6;
+      }
+    }
+
+    public void release() {
+      if (released.compareAndSet(false, true) && limiter != null) {
+        limiter.release(this);
+      }
+    }
+  }
+
+  private static final Permit UNLIMITED = new Permit(null);
+
+  /**
+   * Waits for a slot of {@code model} on behalf of {@code tenant}.
+   *
+   * @throws AdmissionRejectedException if the queue is full or the wait exceeds {@code
+   *     queue-timeout}
+   */
+  public Permit acquire(String model, String tenant) throws InterruptedException {
+    if (!enabled) {
+      return UNLIMITED;
+    }
+    Limiter limiter = limiters.computeIfAbsent(model, key -> new Limiter(key, maxConcurrent));
+    return limiter.acquire(tenant != null ? tenant : "anonymous");
+  }
+
+  private final class Limiter {
+
+    private final String model;
+    // 每个租户一个等待队列，rotation 记录有等待请求的租户的轮转顺序
+    private final Map<String, Deque<CompletableFuture<Permit>>> queues = new HashMap<>();
+    private final Deque<String> rotation = new ArrayDeque<>();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queuedTotal = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private int limit;
+    private int inFlight;
+    private int queued;
+    private double latencyAverageMs = -1;
+    private double latencyBestMs = -1;
+    private int samples;
+
+    private Limiter(String model, int limit) {
+      this.model = model;
+      this.limit = limit;
+    }
+
+    private Permit acquire(String tenant) throws InterruptedException {
+      CompletableFuture<Permit> waiter;
+      synchronized (this) {
+        if (inFlight < limit && queued == 0) {
+          inFlight++;
+          admitted.increment();
+          return new Permit(this);
+        }
+        if (queued >= maxQueued) {
+          rejected.increment();
+          throw new AdmissionRejectedException(
+              "Too many chat requests for " + model + ", retry later", retryAfterSeconds());
+        }
+        waiter = new CompletableFuture<>();
+        Deque<CompletableFuture<Permit>> queue = queues.get(tenant);
+        if (queue == null) {
+          queue = new ArrayDeque<>();
+          queues.put(tenant, queue);
+          rotation.addLast(tenant);
+        }
+        queue.addLast(waiter);
+        queued++;
+        queuedTotal.increment();
+      }
+
+      try {
+        return waiter.get(queueTimeout.toMillis(), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException | InterruptedException e) {
+        synchronized (this) {
+          if (!waiter.isDone() && remove(tenant, waiter)) {
+            if (e instanceof InterruptedException interrupted) {
+              throw interrupted;
+            }
+            timedOut.increment();
+            throw new AdmissionRejectedException(
+                "Timed out waiting for a chat slot for " + model, retryAfterSeconds());
+          }
+        }
+        // 超时的同时已被分配到名额，照常使用
+        return waiter.join();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    private boolean remove(String tenant, CompletableFuture<Permit> waiter) {
+      Deque<CompletableFuture<Permit>> queue = queues.get(tenant);
+      if (queue == null || !queue.remove(waiter)) {
+        return false;
+      }
+      queued--;
+      if (queue.isEmpty()) {
+        queues.remove(tenant);
+        rotation.remove(tenant);
+      }
+      return true;
+    }
+
+    private void release(Permit permit) {
+      synchronized (this) {
+        inFlight--;
+        if (permit.latencyMs >= 0) {
+          sample(permit.latencyMs);
+        }
+        while (inFlight < limit && !rotation.isEmpty()) {
+          String tenant = rotation.pollFirst();
+          Deque<CompletableFuture<Permit>> queue = queues.get(tenant);
+          CompletableFuture<Permit> next = queue.pollFirst();
+          queued--;
+          if (queue.isEmpty()) {
+            queues.remove(tenant);
+          } else {
+            rotation.addLast(tenant);
+          }
+          inFlight++;
+          admitted.increment();
+          next.complete(new Permit(this));
+        }
+      }
+    }
+
+    /** Adjusts the limit from one latency sample; called with the lock held. */
+    private void sample(double latencyMs) {
+      latencyAverageMs =
+          latencyAverageMs < 0 ? latencyMs : latencyAverageMs * 0.9 + latencyMs * 0.1;
+      // 最佳延迟缓慢上浮，模型或负载变化后基线能跟着更新
+      latencyBestMs =
+          latencyBestMs < 0 ? latencyMs : Math.min(latencyMs, latencyBestMs * 1.01 + 0.01);
+      if (!adaptive || ++samples < 10) {
+        return;
+      }
+      samples = 0;
+      int previous = limit;
+      if (latencyAverageMs > latencyBestMs * tolerance) {
+        limit = Math.max(minLimit, (int) (limit * 0.9));
+      } else if (inFlight + queued >= limit) {
+        limit = Math.min(maxLimit, limit + 1);
+      }
+      if (limit != previous) {
+        log.info(
+            "Chat admission limit for {}: {} -> {} (latency {} ms, best {} ms)",
+            model,
+            previous,
+            limit,
+            Math.round(latencyAverageMs),
+            Math.round(latencyBestMs));
+      }
+    }
+
+    /** Rough time until a newly queued request would start; called with the lock held. */
+    private long retryAfterSeconds() {
+      double serviceMs = latencyAverageMs > 0 ? latencyAverageMs : 1000;
+      double waitMs = (queued + 1.0) / Math.max(1, limit) * serviceMs;
+      return Math.max(1, (long) Math.ceil(waitMs / 1000));
+    }
+
+    private synchronized Map<String, Object> metrics() {
+      Map<String, Object> metrics = new LinkedHashMap<>();
+      metrics.put("limit", limit);
+      metrics.put("inFlight", inFlight);
+      metrics.put("queued", queued);
+      metrics.put("queuedTenants", rotation.size());
+      metrics.put("admitted", admitted.sum());
+      metrics.put("queuedTotal", queuedTotal.sum());
+      metrics.put("rejected", rejected.sum());
+      metrics.put("timedOut", timedOut.sum());
+      metrics.put("latencyMs", Math.round(latencyAverageMs));
+      return metrics;
+    }
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "chatAdmission";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    limiters.forEach((model, limiter) -> metrics.put(model, limiter.metrics()));
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logAdmissionMetrics() {
+    log.info("Chat Admission: {}", getMetrics());
+  }
+}
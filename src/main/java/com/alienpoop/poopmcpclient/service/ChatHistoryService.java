@@ -0,0 +1,532 @@
+package com.alienpoop.poopmcpclient.service;
+
+import com.alienpoop.poopmcpclient.dto.ChatRecord;
+import com.alienpoop.poopmcpclient.dto.HistoryPage;
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.ollama.api.OllamaOptions;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Session chat history kept in process, keyed by {@code sessionId}.
+ *
+ * <p>A session is loaded from HyperAGI {@code /mgn/aiMessage/list} once. After each reply the user
+ * turn and the model reply are appended locally, so later turns are served without a remote call.
+ * The page {@code total} is used as the session version: at most every {@code verify-after} a
+ * one-record probe compares it with the expected count, and only on a mismatch are the newest
+ * missing records fetched. Sessions are evicted in LRU order once {@code max-sessions} or the
+ * {@code max-chars} memory cap is exceeded.
+ *
+ * <p>With {@code compaction.enabled} only the last {@code keep-turns} turns are sent verbatim.
+ * Older turns are folded into a rolling summary per session by the chat model, off the request
+ * path, and only when new turns have left the verbatim window; until a fold finishes those turns
+ * stay verbatim. The rendered history is capped at {@code token-budget} cl100k tokens by dropping
+ * its oldest lines.
+ */
+@Component
+@Slf4j
+public class ChatHistoryService implements MetricsSource {
+
+  @Autowired private HyperAgiClient hyperAgiClient;
+
+  @Value("${hyperAGI.history.max-sessions:10000}")
+  private int maxSessions;
+
+  @Value("${hyperAGI.history.max-chars:20000000}")
+  private long maxChars;
+
+  @Value("${hyperAGI.history.verify-after:5m}")
+  private Duration verifyAfter;
+
+  @Value("${hyperAGI.history.user-type:user}")
+  private String userType;
+
+  @Value("${hyperAGI.history.assistant-type:assistant}")
+  private String assistantType;
+
+  @Value("${hyperAGI.history.compaction.enabled:false}")
+  private boolean compactionEnabled;
+
+  @Value("${hyperAGI.history.compaction.keep-turns:4}")
+  private int keepTurns;
+
+  @Value("${hyperAGI.history.compaction.token-budget:2000}")
+  private int historyTokenBudget;
+
+  @Value("${hyperAGI.history.compaction.summary-tokens:300}")
+  private int summaryTokens;
+
+  // 为空时使用 spring.ai.ollama.chat.model
+  @Value("${hyperAGI.history.compaction.model:}")
+  private String summaryModel;
+
+  @Value("${hyperAGI.history.compaction.threads:2}")
+  private int summaryThreads;
+
+  @Autowired private ChatModel chatModel;
+
+  @Autowired private OllamaResidencyManager ollamaResidencyManager;
+
+  private static final Encoding ENCODING =
+      Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+  private static final String SUMMARY_TYPE = "summary";
+
+  private final LinkedHashMap<String, SessionHistory> sessions =
+      new LinkedHashMap<>(256, 0.75f, true);
+  private final Map<String, CompletableFuture<SessionHistory>> loading =
+      new ConcurrentHashMap<>();
+  private long totalChars;
+
+  private long hits;
+  private long misses;
+  private long resyncs;
+  private long summaries;
+  private long summaryFailures;
+  private long truncations;
+
+  private ExecutorService summaryExecutor;
+
+  @PostConstruct
+  public void init() {
+    AtomicInteger counter = new AtomicInteger();
+    summaryExecutor =
+        Executors.newFixedThreadPool(
+            summaryThreads,
+            r -> {
+              Thread thread = new Thread(r, "history-summary-" + counter.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    summaryExecutor.shutdownNow();
+  }
+
+  /** Returns the history of a session as {@code type:textContent} lines, oldest first. */
+  public String getChatHistory(String sessionId, int pageSize) {
+    SessionHistory history;
+    synchronized (sessions) {
+      history = sessions.get(sessionId);
+      if (history != null) {
+        hits++;
+      }
+    }
+
+    if (history == null) {
+      history = loadShared(sessionId, pageSize);
+    } else if (history.isVerificationDue(verifyAfter)) {
+      verify(sessionId, history);
+    }
+
+    if (compactionEnabled) {
+      return compact(sessionId, history);
+    }
+    synchronized (history) {
+      return String.join("\n", history.lines);
+    }
+  }
+
+  /**
+   * Renders the rolling summary, the turns not folded into it yet and the verbatim window, and
+   * schedules a fold when turns have left the window since the last one.
+   */
+  private String compact(String sessionId, SessionHistory history) {
+    List<String> lines;
+    String summary;
+    synchronized (history) {
+      List<String> all = new ArrayList<>(history.lines);
+      int verbatimFrom = Math.max(0, all.size() - keepTurns * 2);
+      long firstSeq = history.seq - all.size() + 1;
+      int unfoldedFrom =
+          (int) Math.min(verbatimFrom, Math.max(0, history.summarizedSeq - firstSeq + 1));
+      if (unfoldedFrom < verbatimFrom && !history.summarizing) {
+        history.summarizing = true;
+        List<String> fold = List.copyOf(all.subList(unfoldedFrom, verbatimFrom));
+        long throughSeq = firstSeq + verbatimFrom - 1;
+        String previous = history.summary;
+        summaryExecutor.execute(() -> fold(sessionId, history, previous, fold, throughSeq));
+      }
+      lines = all.subList(unfoldedFrom, all.size());
+      summary = history.summary;
+    }
+    return capTokens(summary, lines);
+  }
+
+  /** Keeps the newest lines that fit the token budget; the summary goes first when present. */
+  private String capTokens(String summary, List<String> lines) {
+    int budget = historyTokenBudget;
+    String summaryLine = null;
+    if (summary != null) {
+      summaryLine = SUMMARY_TYPE + ":" + summary;
+      IntArrayList tokens = ENCODING.encode(summaryLine);
+      if (tokens.size() > budget / 2) {
+        // 摘要最多占一半预算，其余留给最近的原文
+        IntArrayList head = new IntArrayList(budget / 2);
+        for (int i = 0; i < budget / 2; i++) {
+          head.add(tokens.get(i));
+        }
+        summaryLine = ENCODING.decode(head);
+        budget -= budget / 2;
+      } else {
+        budget -= tokens.size();
+      }
+    }
+
+    Deque<String> kept = new ArrayDeque<>();
+    for (int i = lines.size() - 1; i >= 0; i--) {
+      // 每行之间的换行符约占一个 token
+      int cost = ENCODING.countTokens(lines.get(i)) + 1;
+      if (cost > budget) {
+        synchronized (sessions) {
+          truncations++;
+        }
+        break;
+      }
+      budget -= cost;
+      kept.addFirst(lines.get(i));
+    }
+    if (summaryLine != null) {
+      kept.addFirst(summaryLine);
+    }
+    return String.join("\n", kept);
+  }
+
+  private void fold(
+      String sessionId,
+      SessionHistory history,
+      String previous,
+      List<String> lines,
+      long throughSeq) {
+    String updated;
+    try {
+      updated = summarize(previous, lines);
+    } catch (RuntimeException e) {
+      log.warn("Chat history summary failed for session {}: {}", sessionId, e.getMessage());
+      synchronized (sessions) {
+        summaryFailures++;
+      }
+      synchronized (history) {
+        history.summarizing = false;
+      }
+      return;
+    }
+
+    synchronized (history) {
+      history.setSummary(updated);
+      history.summarizedSeq = throughSeq;
+      history.summarizing = false;
+    }
+    synchronized (sessions) {
+      summaries++;
+    }
+    account(sessionId, history);
+  }
+
+  private String summarize(String previous, List<String> lines) {
+    StringBuilder prompt = new StringBuilder();
+    prompt
+        .append("Update the running summary of a conversation between a user and an assistant. ")
+        .append("Keep facts, names, numbers, decisions, user preferences and open questions; ")
+        .append("drop greetings and filler. Reply with the summary only, in the language of the ")
+        .append("conversation, in at most ")
+        .append(summaryTokens)
+        .append(" tokens.\n\nCurrent summary:\n")
+        .append(previous != null ? previous : "(none)")
+        .append("\n\nNew messages:\n")
+        .append(String.join("\n", lines));
+
+    OllamaOptions.Builder options = ollamaResidencyManager.chatOptions();
+    if (!summaryModel.isBlank()) {
+      options.model(summaryModel);
+    }
+    ChatResponse response = chatModel.call(new Prompt(prompt.toString(), options.build()));
+    String text =
+        response != null && response.getResult() != null && response.getResult().getOutput() != null
+            ? response.getResult().getOutput().getText()
+            : null;
+    if (text == null || text.isBlank()) {
+      throw new IllegalStateException("empty summary");
+    }
+    return text.strip();
+  }
+
+  /** Appends one user turn and the model reply to a cached session. */
+  public void appendTurn(String sessionId, String userText, String reply) {
+    SessionHistory history;
+    synchronized (sessions) {
+      history = sessions.get(sessionId);
+    }
+    if (history == null) {
+      // 未缓存的会话下次访问时从 HyperAGI 完整加载
+      return;
+    }
+
+    synchronized (history) {
+      history.appendLocal(userType + ":" + userText);
+      history.appendLocal(assistantType + ":" + reply);
+    }
+    account(sessionId, history);
+  }
+
+  /**
+   * Whether the session is cached and has no history yet. Answers from memory only, so a session
+   * that is not cached counts as having history.
+   */
+  public boolean isCachedEmpty(String sessionId) {
+    SessionHistory history;
+    synchronized (sessions) {
+      history = sessions.get(sessionId);
+    }
+    if (history == null) {
+      return false;
+    }
+    synchronized (history) {
+      return history.lines.isEmpty();
+    }
+  }
+
+  public void invalidate(String sessionId) {
+    synchronized (sessions) {
+      SessionHistory removed = sessions.remove(sessionId);
+      if (removed != null) {
+        totalChars -= removed.accountedChars;
+      }
+    }
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "chatHistory";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    synchronized (sessions) {
+      metrics.put("sessions", sessions.size());
+      metrics.put("chars", totalChars);
+      metrics.put("hits", hits);
+      metrics.put("misses", misses);
+      metrics.put("resyncs", resyncs);
+      if (compactionEnabled) {
+        metrics.put("summaries", summaries);
+        metrics.put("summaryFailures", summaryFailures);
+        metrics.put("truncations", truncations);
+      }
+    }
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logCacheMetrics() {
+    log.info("Chat History Cache: {}", getMetrics());
+  }
+
+  private SessionHistory loadShared(String sessionId, int pageSize) {
+    CompletableFuture<SessionHistory> future = new CompletableFuture<>();
+    CompletableFuture<SessionHistory> running = loading.putIfAbsent(sessionId, future);
+    if (running != null) {
+      return running.join();
+    }
+
+    try {
+      Page page = fetchPage(sessionId, pageSize);
+      SessionHistory history = new SessionHistory(pageSize);
+      page.lines().forEach(history::append);
+      history.syncedTotal = page.total();
+      history.markVerified();
+
+      synchronized (sessions) {
+        misses++;
+        SessionHistory previous = sessions.put(sessionId, history);
+        if (previous != null) {
+          totalChars -= previous.accountedChars;
+        }
+        history.accountedChars = history.chars;
+        totalChars += history.accountedChars;
+        evict();
+      }
+      future.complete(history);
+      return history;
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(sessionId, future);
+    }
+  }
+
+  private void verify(String sessionId, SessionHistory history) {
+    long expected;
+    long synced;
+    synchronized (history) {
+      if (!history.isVerificationDue(verifyAfter) || history.syncedTotal == null) {
+        return;
+      }
+      history.markVerified();
+      expected = history.syncedTotal + history.local.size();
+      synced = history.syncedTotal;
+    }
+
+    Long total;
+    try {
+      total = fetchPage(sessionId, 1).total();
+    } catch (RuntimeException e) {
+      log.warn("Chat history version probe failed for session {}: {}", sessionId, e.getMessage());
+      return;
+    }
+    if (total != null && total == expected) {
+      return;
+    }
+
+    synchronized (sessions) {
+      resyncs++;
+    }
+    long missing = total != null ? total - synced : -1;
+    if (missing <= 0 || missing % 2 != 0 || missing > history.window) {
+      log.info("Chat history of session {} changed remotely, reloading", sessionId);
+      invalidate(sessionId);
+      return;
+    }
+
+    // 仅拉取上次同步之后新增的记录，并替换本地追加的轮次
+    Page delta = fetchPage(sessionId, (int) missing);
+    synchronized (history) {
+      history.dropLocal();
+      delta.lines().forEach(history::append);
+      history.syncedTotal = total;
+    }
+    account(sessionId, history);
+  }
+
+  /** Brings the memory accounting of a still-cached session up to date and evicts if needed. */
+  private void account(String sessionId, SessionHistory history) {
+    synchronized (sessions) {
+      if (sessions.get(sessionId) != history) {
+        return;
+      }
+      long chars = history.chars;
+      totalChars += chars - history.accountedChars;
+      history.accountedChars = chars;
+      evict();
+    }
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, SessionHistory>> it = sessions.entrySet().iterator();
+    while ((sessions.size() > maxSessions || totalChars > maxChars) && it.hasNext()) {
+      SessionHistory evicted = it.next().getValue();
+      totalChars -= evicted.accountedChars;
+      it.remove();
+    }
+  }
+
+  private Page fetchPage(String sessionId, int pageSize) {
+    HistoryPage page = hyperAgiClient.listMessages(sessionId, pageSize).block();
+    if (page == null) {
+      return new Page(List.of(), null);
+    }
+
+    // HyperAGI 按时间倒序返回：逆序后每两条记录交换顺序，末尾不成对的一条丢弃
+    List<ChatRecord> records = page.records();
+    List<String> lines = new ArrayList<>(records.size());
+    for (int i = records.size() - 1; i >= 1; i -= 2) {
+      lines.add(format(records.get(i - 1)));
+      lines.add(format(records.get(i)));
+    }
+    return new Page(lines, page.total());
+  }
+
+  private static String format(ChatRecord record) {
+    return record.type() + ":" + record.textContent();
+  }
+
+  private record Page(List<String> lines, Long total) {}
+
+  private static final class SessionHistory {
+
+    private final int window;
+    private final Deque<String> lines = new ArrayDeque<>();
+    private final List<String> local = new ArrayList<>();
+    private volatile long chars;
+    // 已计入 totalChars 的字符数，仅在 sessions 锁内读写
+    private long accountedChars;
+    private Long syncedTotal;
+    private long verifiedAtNanos;
+    // 最后一行的序号；已折叠进 summary 的最后一行序号
+    private long seq;
+    private long summarizedSeq;
+    private String summary;
+    private boolean summarizing;
+
+    private SessionHistory(int window) {
+      this.window = window;
+    }
+
+    private void append(String line) {
+      lines.addLast(line);
+      seq++;
+      chars += line.length();
+      while (lines.size() > window) {
+        chars -= lines.removeFirst().length();
+      }
+    }
+
+    /** Appends a record written by this client that HyperAGI has not confirmed yet. */
+    private void appendLocal(String line) {
+      append(line);
+      local.add(line);
+    }
+
+    /** Removes the unconfirmed local records that are still in the window. */
+    private void dropLocal() {
+      for (int i = local.size() - 1; i >= 0 && !lines.isEmpty(); i--) {
+        if (lines.peekLast() == local.get(i)) {
+          chars -= lines.removeLast().length();
+          seq--;
+        }
+      }
+      local.clear();
+    }
+
+    private void setSummary(String summary) {
+      chars += summary.length() - (this.summary != null ? this.summary.length() : 0);
+      this.summary = summary;
+    }
+
+    private boolean isVerificationDue(Duration verifyAfter) {
+      return System.nanoTime() - verifiedAtNanos >= verifyAfter.toNanos();
+    }
+
+    private void markVerified() {
+      verifiedAtNanos = System.nanoTime();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.alienpoop.poopmcpclient.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.prompt.SystemPromptTemplate;
+
+/**
+ * A system prompt template parsed once into literal and placeholder segments.
+ *
+ * <p>Templates that only use plain {@code {name}} placeholders are rendered by concatenating the
+ * segments. Anything else (ST expressions, escaped braces) keeps the full {@link
+ * SystemPromptTemplate} semantics through a single instance created at compile time.
+ */
+public final class CompiledPromptTemplate {
+
+  private static final Pattern PLACEHOLDER = Pattern.compile("\\{([A-Za-z_][A-Za-z0-9_]*)}");
+
+  private final String template;
+  private final List<String> literals;
+  private final List<String> names;
+  private final SystemPromptTemplate fallback;
+
+  private CompiledPromptTemplate(
+      String template, List<String> literals, List<String> names, SystemPromptTemplate fallback) {
+    this.template = template;
+    this.literals = literals;
+    this.names = names;
+    this.fallback = fallback;
+  }
+
+  public static CompiledPromptTemplate compile(String template) {
+    List<String> literals = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    Matcher matcher = PLACEHOLDER.matcher(template);
+    int last = 0;
+    while (matcher.find()) {
+      literals.add(template.substring(last, matcher.start()));
+      names.add(matcher.group(1));
+      last = matcher.end();
+    }
+    literals.add(template.substring(last));
+
+    boolean simple =
+        literals.stream()
+            .noneMatch(literal -> literal.indexOf('{') >= 0 || literal.indexOf('}') >= 0);
+    if (!simple) {
+      return new CompiledPromptTemplate(template, null, null, new SystemPromptTemplate(template));
+    }
+    return new CompiledPromptTemplate(template, List.copyOf(literals), List.copyOf(names), null);
+  }
+
+  public String getTemplate() {
+    return template;
+  }
+
+  public List<String> getPlaceholders() {
+    return names != null ? names : List.of();
+  }
+
+  /** Whether the template references {@code name}. */
+  public boolean uses(String name) {
+    return names != null ? names.contains(name) : template.contains("{" + name);
+  }
+
+  public Message createMessage(Map<String, Object> params) {
+    if (fallback != null) {
+      return fallback.createMessage(params);
+    }
+    return new SystemMessage(render(params));
+  }
+
+  public String render(Map<String, Object> params) {
+    if (fallback != null) {
+      return fallback.render(params);
+    }
+    StringBuilder sb = new StringBuilder(template.length() + 256);
+    for (int i = 0; i < names.size(); i++) {
+      sb.append(literals.get(i));
+      Object value = params.get(names.get(i));
+      if (value != null) {
+        sb.append(value);
+      }
+    }
+    sb.append(literals.get(literals.size() - 1));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,221 @@
+package com.alienpoop.poopmcpclient.service;
+
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the prompt context lookups (chat history, vector store, system prompt template) in
+ * parallel instead of one after another. Each source has its own deadline; a source that is late
+ * or fails is replaced by its fallback so the LLM call is never held up by a single lookup. A
+ * lookup that misses its deadline is cancelled, and when the pool is saturated the source gets its
+ * fallback right away rather than running on the request thread. History and vector context fall
+ * back to empty; the template falls back to the last one loaded, and without one the request fails.
+ *
+ * <p>With {@code inference.prompt.layout: prefix-stable} the system message holds only the
+ * template and the custom system prompt, with each per-request placeholder replaced by a fixed
+ * reference to its section. The sections follow in a user message, chat history first since it
+ * only grows between turns, so consecutive requests share the longest possible prompt prefix and
+ * Ollama can reuse its cached KV state for it.
+ */
+@Component
+@Slf4j
+public class ContextAssembler {
+
+  // 按前缀稳定程度排序：历史只在末尾追加，检索结果和用户输入每次都变
+  private static final List<String> DYNAMIC_PARAMS = List.of("chatHistory", "context", "userText");
+
+  @Autowired private SystemPromptTemplateService systemPromptTemplateService;
+
+  @Value("${inference.prompt.layout:template}")
+  private String layout;
+
+  @Value("${inference.context.history-timeout:3s}")
+  private Duration historyTimeout;
+
+  @Value("${inference.context.vector-timeout:3s}")
+  private Duration vectorTimeout;
+
+  @Value("${inference.context.template-timeout:5s}")
+  private Duration templateTimeout;
+
+  private final ThreadPoolExecutor executor;
+
+  public ContextAssembler(@Value("${inference.context.threads:32}") int threads) {
+    AtomicInteger counter = new AtomicInteger();
+    this.executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(threads * 16),
+            r -> {
+              Thread thread = new Thread(r, "context-assembly-" + counter.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  public record PromptContext(
+      CompiledPromptTemplate template,
+      String chatHistory,
+      String vectorContext,
+      Map<String, String> timings) {}
+
+  public PromptContext assemble(Supplier<String> chatHistory, Supplier<String> vectorContext) {
+    long start = System.nanoTime();
+
+    Source<String> history = submit("chatHistory", chatHistory, historyTimeout, "");
+    Source<String> vector = submit("vectorStore", vectorContext, vectorTimeout, "");
+    Source<CompiledPromptTemplate> template =
+        submit(
+            "systemPromptTemplate",
+            systemPromptTemplateService::getTemplate,
+            templateTimeout,
+            null);
+
+    CompletableFuture.allOf(history.result(), vector.result(), template.result()).join();
+
+    Map<String, String> timings = new LinkedHashMap<>();
+    timings.put(history.name(), history.describe());
+    timings.put(vector.name(), vector.describe());
+    timings.put(template.name(), template.describe());
+
+    CompiledPromptTemplate promptTemplate = template.result().join();
+    if (promptTemplate == null) {
+      // 不使用助手未配置过的模板格式：没有加载过模板时本次请求失败
+      promptTemplate = systemPromptTemplateService.getLastKnown();
+      if (promptTemplate == null) {
+        throw new IllegalStateException(
+            "System prompt template unavailable: " + template.describe());
+      }
+      log.warn("System prompt template {}, using the last loaded one", template.describe());
+    }
+    log.info(
+        "Context assembled in {} ms: {}",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+        timings);
+
+    return new PromptContext(
+        promptTemplate, history.result().join(), vector.result().join(), timings);
+  }
+
+  /** Lays out the rendered prompt according to {@code inference.prompt.layout}. */
+  public List<Message> createMessages(PromptContext context, Map<String, Object> params) {
+    CompiledPromptTemplate template = context.template();
+    if (!"prefix-stable".equals(layout)) {
+      return List.of(template.createMessage(params));
+    }
+
+    Map<String, Object> staticParams = new HashMap<>(params);
+    StringBuilder sections = new StringBuilder();
+    for (String name : DYNAMIC_PARAMS) {
+      if (!template.uses(name)) {
+        continue;
+      }
+      staticParams.put(name, "<" + name + "> (given below)");
+      Object value = params.get(name);
+      if (value == null || value.toString().isEmpty()) {
+        continue;
+      }
+      sections.append('<').append(name).append(">\n");
+      sections.append(value).append("\n</").append(name).append(">\n");
+    }
+
+    List<Message> messages = new ArrayList<>(2);
+    messages.add(new SystemMessage(template.render(staticParams)));
+    if (!sections.isEmpty()) {
+      messages.add(new UserMessage(sections.toString()));
+    }
+    return messages;
+  }
+
+  private <T> Source<T> submit(String name, Supplier<T> supplier, Duration deadline, T fallback) {
+    long start = System.nanoTime();
+    AtomicLong elapsed = new AtomicLong(-1);
+    // 查询结果与截止时间谁先到由 outcome 决定，只有先到的一方完成 result
+    AtomicReference<String> outcome = new AtomicReference<>();
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Future<?> running;
+    try {
+      running =
+          executor.submit(
+              () -> {
+                T value;
+                try {
+                  value = supplier.get();
+                } catch (RuntimeException e) {
+                  if (outcome.compareAndSet(null, "failed")) {
+                    elapsed.set(System.nanoTime() - start);
+                    log.warn("Context source {} failed: {}", name, e.getMessage());
+                    result.complete(fallback);
+                  }
+                  return;
+                }
+                if (outcome.compareAndSet(null, "ok")) {
+                  elapsed.set(System.nanoTime() - start);
+                  result.complete(value);
+                }
+              });
+    } catch (RejectedExecutionException e) {
+      // 线程池已满时不在请求线程上查询，直接使用回退值
+      log.warn("Context source {} rejected, pool saturated", name);
+      outcome.set("rejected");
+      return new Source<>(name, CompletableFuture.completedFuture(fallback), elapsed, outcome);
+    }
+    CompletableFuture.delayedExecutor(deadline.toMillis(), TimeUnit.MILLISECONDS)
+        .execute(
+            () -> {
+              if (outcome.compareAndSet(null, "timeout")) {
+                result.complete(fallback);
+                // 迟到的查询不再占用线程
+                running.cancel(true);
+              }
+            });
+    return new Source<>(name, result, elapsed, outcome);
+  }
+
+  private record Source<T>(
+      String name,
+      CompletableFuture<T> result,
+      AtomicLong elapsed,
+      AtomicReference<String> outcome) {
+
+    String describe() {
+      long nanos = elapsed.get();
+      if (nanos < 0) {
+        return outcome.get();
+      }
+      return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms " + outcome.get();
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
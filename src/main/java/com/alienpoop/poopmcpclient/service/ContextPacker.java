@@ -0,0 +1,198 @@
+package com.alienpoop.poopmcpclient.service;
+
+import cn.hutool.core.util.StrUtil;
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Packs retrieved chunks into the {@code {context}} of the prompt under a token budget.
+ *
+ * <p>Candidates are ordered by maximal marginal relevance, {@code lambda * sim(query, chunk) - (1 -
+ * lambda) * max sim(chunk, picked)}, so a chunk that mostly repeats one already picked falls
+ * behind chunks that add something new; chunks at or above {@code duplicate-threshold} similarity
+ * to a chunk kept before them are dropped, so of near-duplicates the one MMR prefers survives. The
+ * budget is then filled with the surviving chunks in relevance order, and they are emitted in that
+ * order. Vectors come from the caching embedding model, where chunk embeddings are usually already
+ * present from ingestion or earlier queries.
+ */
+@Component
+@Slf4j
+public class ContextPacker implements MetricsSource {
+
+  private static final Encoding ENCODING =
+      Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+  @Autowired private EmbeddingModel embeddingModel;
+
+  @Value("${knowledge.context.token-budget:1500}")
+  private int tokenBudget;
+
+  @Value("${knowledge.context.mmr-lambda:0.7}")
+  private double lambda;
+
+  @Value("${knowledge.context.duplicate-threshold:0.95}")
+  private double duplicateThreshold;
+
+  private final LongAdder packs = new LongAdder();
+  private final LongAdder candidateTokens = new LongAdder();
+  private final LongAdder packedTokens = new LongAdder();
+  private final LongAdder duplicatesDropped = new LongAdder();
+  private final LongAdder overBudgetDropped = new LongAdder();
+
+  public record PackedContext(
+      String text,
+      int candidates,
+      int packed,
+      int candidateTokens,
+      int packedTokens,
+      int duplicates,
+      int overBudget) {
+
+    public int tokensSaved() {
+      return candidateTokens - packedTokens;
+    }
+  }
+
+  public PackedContext pack(String query, List<Document> candidates) {
+    List<Document> documents =
+        candidates.stream().filter(doc -> StrUtil.isNotBlank(doc.getText())).toList();
+    if (documents.isEmpty()) {
+      return new PackedContext("", 0, 0, 0, 0, 0, 0);
+    }
+
+    List<String> texts = new ArrayList<>(documents.size() + 1);
+    texts.add(query);
+    documents.forEach(doc -> texts.add(doc.getText()));
+    List<float[]> vectors = embeddingModel.embed(texts);
+    float[] queryVector = vectors.get(0);
+    List<float[]> chunkVectors = vectors.subList(1, vectors.size());
+
+    int n = documents.size();
+    double[] relevance = new double[n];
+    double[] redundancy = new double[n];
+    boolean[] done = new boolean[n];
+    int[] tokens = new int[n];
+    int totalTokens = 0;
+    for (int i = 0; i < n; i++) {
+      relevance[i] = cosine(queryVector, chunkVectors.get(i));
+      tokens[i] = ENCODING.countTokens(documents.get(i).getText());
+      totalTokens += tokens[i];
+    }
+
+    List<Integer> survivors = new ArrayList<>();
+    int duplicates = 0;
+    for (int round = 0; round < n; round++) {
+      int best = -1;
+      double bestScore = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < n; i++) {
+        if (done[i]) {
+          continue;
+        }
+        double score = lambda * relevance[i] - (1 - lambda) * redundancy[i];
+        if (score > bestScore) {
+          bestScore = score;
+          best = i;
+        }
+      }
+      done[best] = true;
+
+      if (redundancy[best] >= duplicateThreshold) {
+        duplicates++;
+        continue;
+      }
+      survivors.add(best);
+      for (int i = 0; i < n; i++) {
+        if (!done[i]) {
+          redundancy[i] =
+              Math.max(redundancy[i], cosine(chunkVectors.get(best), chunkVectors.get(i)));
+        }
+      }
+    }
+
+    // 去重后按与查询的相关度填充预算并输出
+    survivors.sort((a, b) -> Double.compare(relevance[b], relevance[a]));
+    List<String> picked = new ArrayList<>();
+    int used = 0;
+    int overBudget = 0;
+    for (int i : survivors) {
+      if (used + tokens[i] > tokenBudget) {
+        overBudget++;
+        continue;
+      }
+      used += tokens[i];
+      picked.add(documents.get(i).getText());
+    }
+
+    PackedContext packed =
+        new PackedContext(
+            String.join("\n", picked), n, picked.size(), totalTokens, used, duplicates, overBudget);
+    record(packed);
+    log.info(
+        "Context packed: {}/{} chunks, {}/{} tokens ({} saved, {} duplicates, {} over budget)",
+        packed.packed(),
+        packed.candidates(),
+        packed.packedTokens(),
+        packed.candidateTokens(),
+        packed.tokensSaved(),
+        duplicates,
+        overBudget);
+    return packed;
+  }
+
+  private void record(PackedContext packed) {
+    packs.increment();
+    candidateTokens.add(packed.candidateTokens());
+    packedTokens.add(packed.packedTokens());
+    duplicatesDropped.add(packed.duplicates());
+    overBudgetDropped.add(packed.overBudget());
+  }
+
+  static double cosine(float[] a, float[] b) {
+    double dot = 0;
+    double normA = 0;
+    double normB = 0;
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      dot += a[i] * b[i];
+      normA += a[i] * a[i];
+      normB += b[i] * b[i];
+    }
+    return normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "contextPacker";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    long candidates = candidateTokens.sum();
+    long packed = packedTokens.sum();
+    metrics.put("packs", packs.sum());
+    metrics.put("candidateTokens", candidates);
+    metrics.put("packedTokens", packed);
+    metrics.put("tokensSaved", candidates - packed);
+    metrics.put("duplicatesDropped", duplicatesDropped.sum());
+    metrics.put("overBudgetDropped", overBudgetDropped.sum());
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logPackerMetrics() {
+    log.info("Context Packer: {}", getMetrics());
+  }
+}
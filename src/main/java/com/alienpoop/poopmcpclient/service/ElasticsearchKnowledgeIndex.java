@@ -0,0 +1,273 @@
+package com.alienpoop.poopmcpclient.service;
+
+import cn.hutool.core.util.StrUtil;
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.SlicesCalculation;
+import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.DeleteByQueryResponse;
+import co.elastic.clients.elasticsearch.core.MsearchResponse;
+import co.elastic.clients.elasticsearch.core.ScrollResponse;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.msearch.MultiSearchResponseItem;
+import co.elastic.clients.elasticsearch.core.msearch.MultisearchBody;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.SourceConfig;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Direct access to the knowledge base index for the bookkeeping the {@code VectorStore} API has
+ * no call for: listing or deleting every chunk of an assistant without a similarity query, and
+ * updating chunk metadata in place without re-embedding.
+ *
+ * <p>Documents are laid out the way {@code ElasticsearchVectorStore} writes them: {@code _id} is
+ * the document id and the metadata map sits under {@code metadata}, dynamically mapped.
+ */
+@Component
+@Slf4j
+public class ElasticsearchKnowledgeIndex {
+
+  private static final String ASSISTANT_FIELD = "metadata.assistantId.keyword";
+  private static final Time SCROLL_KEEP_ALIVE = Time.of(t -> t.time("1m"));
+  private static final SourceConfig HIT_SOURCE =
+      SourceConfig.of(s -> s.filter(f -> f.includes("content", "metadata")));
+
+  @Autowired private ElasticsearchClient elasticsearchClient;
+
+  @Value("${spring.ai.vectorstore.elasticsearch.index-name}")
+  private String indexName;
+
+  @Value("${knowledge.index.page-size:1000}")
+  private int pageSize;
+
+  @Value("${knowledge.retrieval.hybrid.candidates-factor:4}")
+  private int hybridCandidatesFactor;
+
+  @Value("${knowledge.retrieval.hybrid.rank-constant:60}")
+  private int rrfRankConstant;
+
+  /** Fingerprint metadata of one stored chunk; fields are null for chunks written before them. */
+  public record ChunkFingerprint(
+      String id, String sourceUrl, String sourceHash, String chunkHash) {}
+
+  /** Lists the fingerprints of every chunk of an assistant, paging through a scroll. */
+  @SuppressWarnings("rawtypes")
+  public List<ChunkFingerprint> listChunks(String assistantId) throws IOException {
+    List<ChunkFingerprint> chunks = new ArrayList<>();
+    SearchResponse<Map> response =
+        elasticsearchClient.search(
+            s ->
+                s.index(indexName)
+                    .ignoreUnavailable(true)
+                    .size(pageSize)
+                    .scroll(SCROLL_KEEP_ALIVE)
+                    .query(q -> q.term(t -> t.field(ASSISTANT_FIELD).value(assistantId)))
+                    .source(
+                        src ->
+                            src.filter(
+                                f ->
+                                    f.includes(
+                                        "metadata.sourceUrl",
+                                        "metadata.sourceHash",
+                                        "metadata.chunkHash"))),
+            Map.class);
+
+    String scrollId = response.scrollId();
+    List<Hit<Map>> hits = response.hits().hits();
+    try {
+      while (!hits.isEmpty()) {
+        hits.forEach(hit -> chunks.add(fingerprint(hit)));
+        if (scrollId == null || hits.size() < pageSize) {
+          break;
+        }
+        String currentScrollId = scrollId;
+        ScrollResponse<Map> page =
+            elasticsearchClient.scroll(
+                s -> s.scrollId(currentScrollId).scroll(SCROLL_KEEP_ALIVE), Map.class);
+        scrollId = page.scrollId();
+        hits = page.hits().hits();
+      }
+    } finally {
+      if (scrollId != null) {
+        String currentScrollId = scrollId;
+        try {
+          elasticsearchClient.clearScroll(c -> c.scrollId(currentScrollId));
+        } catch (IOException | RuntimeException e) {
+          log.warn("Failed to clear scroll: {}", e.getMessage());
+        }
+      }
+    }
+    return chunks;
+  }
+
+  /**
+   * Hybrid retrieval: a BM25 match on the chunk text and a kNN query on its embedding, sent as one
+   * {@code _msearch} and fused client-side with reciprocal rank fusion, {@code score = sum(1 / (k +
+   * rank))}. Fusing by rank rather than score needs no normalization between the two retrievers
+   * and no RRF licence on the cluster. {@code threshold} is the cosine similarity, as for the vector
+   * store, and only filters the kNN side.
+   */
+  @SuppressWarnings("rawtypes")
+  public List<Document> hybridSearch(
+      String assistantId, String query, float[] vector, int topK, double threshold)
+      throws IOException {
+    int candidates = Math.max(topK, topK * hybridCandidatesFactor);
+    boolean scoped = StrUtil.isNotBlank(assistantId);
+    Query filter =
+        scoped
+            ? Query.of(q -> q.term(t -> t.field(ASSISTANT_FIELD).value(assistantId)))
+            : Query.of(q -> q.matchAll(m -> m));
+    List<Float> queryVector = new ArrayList<>(vector.length);
+    for (float v : vector) {
+      queryVector.add(v);
+    }
+
+    MultisearchBody lexical =
+        MultisearchBody.of(
+            b ->
+                b.size(candidates)
+                    .source(HIT_SOURCE)
+                    .query(
+                        q ->
+                            q.bool(
+                                bool ->
+                                    bool.must(
+                                            must ->
+                                                must.match(m -> m.field("content").query(query)))
+                                        .filter(filter))));
+    MultisearchBody semantic =
+        MultisearchBody.of(
+            b ->
+                b.size(candidates)
+                    .source(HIT_SOURCE)
+                    .knn(
+                        k -> {
+                          k.field("embedding")
+                              .queryVector(queryVector)
+                              .k(candidates)
+                              .numCandidates(candidates * 2)
+                              .filter(filter);
+                          if (threshold > 0) {
+                            // 与 ElasticsearchVectorStore 一致：kNN 的 similarity 取原始余弦相似度
+                            k.similarity((float) threshold);
+                          }
+                          return k;
+                        }));
+
+    MsearchResponse<Map> response =
+        elasticsearchClient.msearch(
+            m ->
+                m.index(indexName)
+                    .searches(s -> s.header(h -> h).body(lexical))
+                    .searches(s -> s.header(h -> h).body(semantic)),
+            Map.class);
+
+    Map<String, Double> fused = new LinkedHashMap<>();
+    Map<String, Hit<Map>> hitsById = new HashMap<>();
+    for (MultiSearchResponseItem<Map> item : response.responses()) {
+      if (item.isFailure()) {
+        throw new IOException("Hybrid search failed: " + item.failure().error().reason());
+      }
+      List<Hit<Map>> hits = item.result().hits().hits();
+      for (int rank = 0; rank < hits.size(); rank++) {
+        Hit<Map> hit = hits.get(rank);
+        fused.merge(hit.id(), 1.0 / (rrfRankConstant + rank + 1), Double::sum);
+        hitsById.putIfAbsent(hit.id(), hit);
+      }
+    }
+
+    return fused.entrySet().stream()
+        .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+        .limit(topK)
+        .map(entry -> toDocument(hitsById.get(entry.getKey()), entry.getValue()))
+        .toList();
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private static Document toDocument(Hit<Map> hit, double score) {
+    Map<String, Object> source = hit.source() != null ? hit.source() : Map.of();
+    Map<String, Object> metadata = new HashMap<>();
+    if (source.get("metadata") instanceof Map m) {
+      metadata.putAll(m);
+    }
+    return Document.builder()
+        .id(hit.id())
+        .text((String) source.get("content"))
+        .metadata(metadata)
+        .score(score)
+        .build();
+  }
+
+  /**
+   * Deletes every chunk of an assistant with one server-side delete-by-query and returns how many
+   * were deleted. Nothing is embedded or transferred, whatever the number of chunks.
+   */
+  public long deleteByAssistant(String assistantId) throws IOException {
+    DeleteByQueryResponse response =
+        elasticsearchClient.deleteByQuery(
+            d ->
+                d.index(indexName)
+                    .ignoreUnavailable(true)
+                    .query(q -> q.term(t -> t.field(ASSISTANT_FIELD).value(assistantId)))
+                    .conflicts(Conflicts.Proceed)
+                    .slices(s -> s.computed(SlicesCalculation.Auto))
+                    .refresh(true));
+    if (!response.failures().isEmpty()) {
+      throw new IOException(
+          "Delete by query failed for "
+              + response.failures().size()
+              + " chunks: "
+              + response.failures().get(0).cause().reason());
+    }
+    long deleted = response.deleted() != null ? response.deleted() : 0;
+    log.info(
+        "Deleted {} chunks of assistantId {} ({} version conflicts)",
+        deleted,
+        assistantId,
+        response.versionConflicts());
+    return deleted;
+  }
+
+  /** Sets {@code metadata.sourceHash} on existing chunks, leaving content and vectors as is. */
+  public void updateSourceHash(List<String> ids, String sourceHash) throws IOException {
+    for (int from = 0; from < ids.size(); from += pageSize) {
+      List<BulkOperation> operations = new ArrayList<>();
+      for (String id : ids.subList(from, Math.min(from + pageSize, ids.size()))) {
+        Map<String, Object> doc = Map.of("metadata", Map.of("sourceHash", sourceHash));
+        operations.add(
+            BulkOperation.of(
+                b -> b.update(u -> u.index(indexName).id(id).action(a -> a.doc(doc)))));
+      }
+      BulkResponse response = elasticsearchClient.bulk(b -> b.operations(operations));
+      if (response.errors()) {
+        log.warn("Bulk sourceHash update reported errors for {} chunks", operations.size());
+      }
+    }
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private static ChunkFingerprint fingerprint(Hit<Map> hit) {
+    Map<String, Object> metadata = new HashMap<>();
+    if (hit.source() != null && hit.source().get("metadata") instanceof Map m) {
+      metadata.putAll(m);
+    }
+    return new ChunkFingerprint(
+        hit.id(),
+        (String) metadata.get("sourceUrl"),
+        (String) metadata.get("sourceHash"),
+        (String) metadata.get("chunkHash"));
+  }
+}
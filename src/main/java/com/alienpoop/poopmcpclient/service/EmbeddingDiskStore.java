@@ -0,0 +1,181 @@
+package com.alienpoop.poopmcpclient.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fixed-size, memory-mapped hash table of embedding vectors keyed by a 32-byte content hash.
+ *
+ * <p>Each slot holds the key followed by {@code dimensions} floats. Lookups probe a few slots from
+ * the key's home slot; when they are all taken, an insert overwrites the home slot, so the file
+ * never grows. A file written with a different layout is discarded on open.
+ *
+ * <p>A slot is written by clearing its key, then writing the vector, then the new key, so a process
+ * that dies mid-write leaves an empty slot instead of a key paired with another key's vector.
+ */
+@Slf4j
+final class EmbeddingDiskStore implements Closeable {
+
+  static final int KEY_BYTES = 32;
+
+  private static final int MAGIC = 0x454D4231; // "EMB1"
+  private static final int HEADER_BYTES = 64;
+  private static final int MAX_PROBES = 8;
+  private static final byte[] EMPTY_KEY = new byte[KEY_BYTES];
+
+  private final int dimensions;
+  private final int capacity;
+  private final int slotBytes;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  EmbeddingDiskStore(Path path, int capacity, int dimensions) throws IOException {
+    this.dimensions = dimensions;
+    this.capacity = capacity;
+    this.slotBytes = KEY_BYTES + dimensions * Float.BYTES;
+
+    long size = HEADER_BYTES + (long) capacity * slotBytes;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Embedding disk cache larger than 2 GB: " + size);
+    }
+
+    if (path.getParent() != null) {
+      Files.createDirectories(path.getParent());
+    }
+    this.channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    boolean compatible = channel.size() == size && headerMatches();
+    if (!compatible) {
+      log.info("Initializing embedding disk cache {} ({} slots)", path, capacity);
+      channel.truncate(0);
+    }
+    this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    if (!compatible) {
+      buffer.putInt(0, MAGIC).putInt(4, dimensions).putInt(8, capacity);
+    }
+  }
+
+  private boolean headerMatches() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(12);
+    channel.read(header, 0);
+    header.flip();
+    return header.remaining() == 12
+        && header.getInt() == MAGIC
+        && header.getInt() == dimensions
+        && header.getInt() == capacity;
+  }
+
+  float[] get(byte[] key) {
+    lock.readLock().lock();
+    try {
+      int slot = find(key);
+      if (slot < 0) {
+        return null;
+      }
+      float[] vector = new float[dimensions];
+      buffer
+          .slice(offset(slot) + KEY_BYTES, dimensions * Float.BYTES)
+          .asFloatBuffer()
+          .get(vector);
+      return vector;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  void put(byte[] key, float[] vector) {
+    if (vector.length != dimensions) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      int slot = find(key);
+      if (slot < 0) {
+        slot = freeSlot(key);
+      }
+      int offset = offset(slot);
+      // 映射页在进程退出后仍会落盘，先清键可避免崩溃后旧键对应新向量
+      buffer.put(offset, EMPTY_KEY);
+      buffer.slice(offset + KEY_BYTES, dimensions * Float.BYTES).asFloatBuffer().put(vector);
+      buffer.put(offset, key);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private int find(byte[] key) {
+    int home = home(key);
+    for (int i = 0; i < MAX_PROBES; i++) {
+      int slot = (home + i) % capacity;
+      if (isEmpty(slot)) {
+        return -1;
+      }
+      if (keyEquals(slot, key)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private int freeSlot(byte[] key) {
+    int home = home(key);
+    for (int i = 0; i < MAX_PROBES; i++) {
+      int slot = (home + i) % capacity;
+      if (isEmpty(slot)) {
+        return slot;
+      }
+    }
+    return home;
+  }
+
+  private int home(byte[] key) {
+    int hash = ByteBuffer.wrap(key, 0, Integer.BYTES).getInt();
+    return Math.floorMod(hash, capacity);
+  }
+
+  private boolean isEmpty(int slot) {
+    int offset = offset(slot);
+    for (int i = 0; i < KEY_BYTES; i += Long.BYTES) {
+      if (buffer.getLong(offset + i) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean keyEquals(int slot, byte[] key) {
+    int offset = offset(slot);
+    for (int i = 0; i < KEY_BYTES; i++) {
+      if (buffer.get(offset + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int offset(int slot) {
+    return HEADER_BYTES + slot * slotBytes;
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      buffer.force();
+      channel.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
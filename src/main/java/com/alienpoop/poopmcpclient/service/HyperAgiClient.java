@@ -0,0 +1,292 @@
+package com.alienpoop.poopmcpclient.service;
+
+import com.alienpoop.poopmcpclient.dto.ChatRecord;
+import com.alienpoop.poopmcpclient.dto.HistoryPage;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Typed client for the HyperAGI endpoints used by the chat pipeline.
+ *
+ * <p>Requests share one pooled keep-alive connection provider and are parsed with the streaming
+ * Jackson parser straight into compact records, skipping every field the prompt does not use.
+ */
+@Component
+@Slf4j
+public class HyperAgiClient implements MetricsSource {
+
+  @Value("${hyperAGI.api}")
+  private String hyperAGIAPI;
+
+  @Value("${hyperAGI.client.max-connections:64}")
+  private int maxConnections;
+
+  @Value("${hyperAGI.client.pending-acquire-max:512}")
+  private int pendingAcquireMax;
+
+  @Value("${hyperAGI.client.pending-acquire-timeout:5s}")
+  private Duration pendingAcquireTimeout;
+
+  @Value("${hyperAGI.client.max-idle-time:30s}")
+  private Duration maxIdleTime;
+
+  @Value("${hyperAGI.client.max-life-time:5m}")
+  private Duration maxLifeTime;
+
+  @Value("${hyperAGI.client.connect-timeout:3s}")
+  private Duration connectTimeout;
+
+  @Value("${hyperAGI.client.response-timeout:10s}")
+  private Duration responseTimeout;
+
+  @Autowired private WebClient.Builder webClientBuilder;
+  @Autowired private ObjectMapper objectMapper;
+
+  private ConnectionProvider connectionProvider;
+  private WebClient webClient;
+
+  private final Map<SocketAddress, ConnectionPoolMetrics> poolMetrics = new ConcurrentHashMap<>();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder latencyNanos = new LongAdder();
+
+  @PostConstruct
+  public void init() {
+    connectionProvider =
+        ConnectionProvider.builder("hyperagi")
+            .maxConnections(maxConnections)
+            .pendingAcquireMaxCount(pendingAcquireMax)
+            .pendingAcquireTimeout(pendingAcquireTimeout)
+            .maxIdleTime(maxIdleTime)
+            .maxLifeTime(maxLifeTime)
+            .evictInBackground(maxIdleTime)
+            .metrics(
+                true,
+                () ->
+                    new ConnectionProvider.MeterRegistrar() {
+                      @Override
+                      public void registerMetrics(
+                          String poolName,
+                          String id,
+                          SocketAddress remoteAddress,
+                          ConnectionPoolMetrics metrics) {
+                        poolMetrics.put(remoteAddress, metrics);
+                      }
+
+                      @Override
+                      public void deRegisterMetrics(
+                          String poolName, String id, SocketAddress remoteAddress) {
+                        poolMetrics.remove(remoteAddress);
+                      }
+                    })
+            .build();
+
+    HttpClient httpClient =
+        HttpClient.create(connectionProvider)
+            .keepAlive(true)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeout.toMillis())
+            .responseTimeout(responseTimeout);
+
+    webClient =
+        webClientBuilder
+            .clone()
+            .baseUrl(hyperAGIAPI)
+            .clientConnector(new ReactorClientHttpConnector(httpClient))
+            .build();
+  }
+
+  /** Lists the newest messages of a session, as returned by {@code /mgn/aiMessage/list}. */
+  public Mono<HistoryPage> listMessages(String sessionId, int pageSize) {
+    return timed(
+        webClient
+            .get()
+            .uri(
+                uriBuilder ->
+                    uriBuilder
+                        .path("/mgn/aiMessage/list")
+                        .queryParam("pageNo", 1)
+                        .queryParam("pageSize", pageSize)
+                        .queryParam("aiSessionId", sessionId)
+                        .queryParam("column", "created_time")
+                        .build())
+            .retrieve()
+            .bodyToFlux(DataBuffer.class)
+            .as(DataBufferUtils::join)
+            .map(buffer -> parse(buffer, HyperAgiClient::parseHistoryPage)));
+  }
+
+  /** Reads one entry of a HyperAGI dictionary, e.g. {@code sys_config/SYSTEM_PROMPT_TEMPLATE}. */
+  public Mono<String> getDictText(String dictCode, String key) {
+    return timed(
+        webClient
+            .get()
+            .uri("/sys/dict/getDictText/{dictCode}/{key}", dictCode, key)
+            .retrieve()
+            .bodyToFlux(DataBuffer.class)
+            .as(DataBufferUtils::join)
+            .map(buffer -> parse(buffer, HyperAgiClient::parseDictText)));
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "hyperAGI";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    long count = requests.sum();
+    metrics.put("requests", count);
+    metrics.put("failures", failures.sum());
+    metrics.put(
+        "avgLatencyMs", count > 0 ? TimeUnit.NANOSECONDS.toMillis(latencyNanos.sum() / count) : 0);
+
+    int acquired = 0;
+    int idle = 0;
+    int allocated = 0;
+    int pending = 0;
+    for (ConnectionPoolMetrics pool : poolMetrics.values()) {
+      acquired += pool.acquiredSize();
+      idle += pool.idleSize();
+      allocated += pool.allocatedSize();
+      pending += pool.pendingAcquireSize();
+    }
+    metrics.put("poolAcquired", acquired);
+    metrics.put("poolIdle", idle);
+    metrics.put("poolAllocated", allocated);
+    metrics.put("poolPendingAcquire", pending);
+    metrics.put("poolMaxConnections", maxConnections);
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logPoolMetrics() {
+    log.info("HyperAGI Client Metrics: {}", getMetrics());
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (connectionProvider != null) {
+      connectionProvider.dispose();
+    }
+  }
+
+  private <T> Mono<T> timed(Mono<T> call) {
+    return Mono.defer(
+        () -> {
+          long start = System.nanoTime();
+          requests.increment();
+          return call.doOnError(e -> failures.increment())
+              .doFinally(signal -> latencyNanos.add(System.nanoTime() - start));
+        });
+  }
+
+  private interface ResponseParser<T> {
+    T parse(JsonParser parser) throws IOException;
+  }
+
+  private <T> T parse(DataBuffer buffer, ResponseParser<T> responseParser) {
+    JsonFactory factory = objectMapper.getFactory();
+    try (InputStream in = buffer.asInputStream(true);
+        JsonParser parser = factory.createParser(in)) {
+      return responseParser.parse(parser);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to parse HyperAGI response", e);
+    }
+  }
+
+  static HistoryPage parseHistoryPage(JsonParser parser) throws IOException {
+    List<ChatRecord> records = new ArrayList<>();
+    Long total = null;
+    expectObject(parser);
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      JsonToken token = parser.nextToken();
+      if (!"result".equals(field) || token != JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        continue;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.currentName();
+        JsonToken value = parser.nextToken();
+        if ("total".equals(name) && value.isNumeric()) {
+          total = parser.getLongValue();
+        } else if ("records".equals(name) && value == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            records.add(parseRecord(parser));
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return new HistoryPage(records, total);
+  }
+
+  private static ChatRecord parseRecord(JsonParser parser) throws IOException {
+    String type = null;
+    String textContent = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.currentName();
+      parser.nextToken();
+      if ("type".equals(name)) {
+        type = parser.getValueAsString();
+      } else if ("textContent".equals(name)) {
+        textContent = parser.getValueAsString();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return new ChatRecord(type, textContent);
+  }
+
+  static String parseDictText(JsonParser parser) throws IOException {
+    String result = null;
+    expectObject(parser);
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      parser.nextToken();
+      if ("result".equals(field)) {
+        result = parser.getValueAsString();
+      }
+      parser.skipChildren();
+    }
+    return result;
+  }
+
+  private static void expectObject(JsonParser parser) throws IOException {
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new IOException("Unexpected HyperAGI response: " + parser.currentToken());
+    }
+  }
+}
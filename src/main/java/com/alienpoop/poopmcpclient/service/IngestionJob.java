@@ -0,0 +1,221 @@
+package com.alienpoop.poopmcpclient.service;
+
+import com.alienpoop.poopmcpclient.dto.IngestionResult;
+import com.alienpoop.poopmcpclient.service.KnowledgeIngestionService.IngestionListener;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import org.springframework.ai.document.Document;
+import reactor.core.Disposable;
+
+/**
+ * One knowledge base upload submitted to {@link IngestionJobService}, tracking per-file and
+ * per-chunk progress as the ingestion pipeline reports it.
+ */
+public class IngestionJob implements IngestionListener {
+
+  public enum Status {
+    QUEUED,
+    RUNNING,
+    SUCCEEDED,
+    FAILED,
+    CANCELLED
+  }
+
+  @Getter private final String id;
+  @Getter private final String assistantId;
+  @Getter private final CompletableFuture<IngestionResult> completion = new CompletableFuture<>();
+
+  private final Map<String, FileProgress> files = new LinkedHashMap<>();
+  private final AtomicInteger chunksSplit = new AtomicInteger();
+  private final AtomicInteger chunksEmbedded = new AtomicInteger();
+  private final AtomicInteger chunksIndexed = new AtomicInteger();
+  private final long createdAtMillis = System.currentTimeMillis();
+
+  @Getter private volatile Status status = Status.QUEUED;
+  private volatile long startedAtNanos;
+  private volatile long finishedAtNanos;
+  private volatile long finishedAtMillis;
+  private volatile String error;
+  private volatile Disposable subscription;
+
+  private static final class FileProgress {
+    private volatile String stage = "QUEUED";
+    private volatile int newChunks;
+    private volatile int keptChunks;
+    private final AtomicInteger embedded = new AtomicInteger();
+    private final AtomicInteger indexed = new AtomicInteger();
+    private volatile String error;
+  }
+
+  IngestionJob(String id, String assistantId, Collection<String> urls) {
+    this.id = id;
+    this.assistantId = assistantId;
+    urls.forEach(url -> files.put(url, new FileProgress()));
+  }
+
+  /** Marks the job running; returns false if it was cancelled while queued. */
+  synchronized boolean start() {
+    if (status != Status.QUEUED) {
+      return false;
+    }
+    status = Status.RUNNING;
+    startedAtNanos = System.nanoTime();
+    return true;
+  }
+
+  synchronized void attach(Disposable subscription) {
+    if (status == Status.CANCELLED) {
+      subscription.dispose();
+    } else {
+      this.subscription = subscription;
+    }
+  }
+
+  synchronized void succeed(IngestionResult result) {
+    if (status == Status.RUNNING) {
+      status = Status.SUCCEEDED;
+      finish();
+    }
+    completion.complete(result);
+  }
+
+  synchronized void fail(Throwable e) {
+    if (status == Status.RUNNING || status == Status.QUEUED) {
+      status = Status.FAILED;
+      error = e.getMessage();
+      finish();
+    }
+    completion.completeExceptionally(e);
+  }
+
+  /** Cancels a queued or running job; returns false if it had already finished. */
+  public synchronized boolean cancel() {
+    if (status != Status.QUEUED && status != Status.RUNNING) {
+      return false;
+    }
+    status = Status.CANCELLED;
+    finish();
+    if (subscription != null) {
+      subscription.dispose();
+    }
+    completion.cancel(false);
+    return true;
+  }
+
+  public boolean isFinished() {
+    return status != Status.QUEUED && status != Status.RUNNING;
+  }
+
+  long getFinishedAtMillis() {
+    return finishedAtMillis;
+  }
+
+  private void finish() {
+    finishedAtNanos = System.nanoTime();
+    finishedAtMillis = System.currentTimeMillis();
+  }
+
+  @Override
+  public void onFileStage(String url, String stage) {
+    file(url).stage = stage;
+  }
+
+  @Override
+  public void onFileSplit(String url, int newChunks, int keptChunks) {
+    FileProgress file = file(url);
+    file.newChunks = newChunks;
+    file.keptChunks = keptChunks;
+    // 流式切分时分片可能在切分结束前就已写入
+    file.stage = file.indexed.get() >= newChunks ? "DONE" : "INDEXING";
+    chunksSplit.addAndGet(newChunks);
+  }
+
+  @Override
+  public void onChunksEmbedded(List<Document> batch) {
+    chunksEmbedded.addAndGet(batch.size());
+    batch.forEach(chunk -> file(sourceUrl(chunk)).embedded.incrementAndGet());
+  }
+
+  @Override
+  public void onChunksIndexed(List<Document> batch) {
+    chunksIndexed.addAndGet(batch.size());
+    for (Document chunk : batch) {
+      FileProgress file = file(sourceUrl(chunk));
+      if (file.indexed.incrementAndGet() >= file.newChunks && "INDEXING".equals(file.stage)) {
+        file.stage = "DONE";
+      }
+    }
+  }
+
+  @Override
+  public void onFileFailed(String url, String error) {
+    FileProgress file = file(url);
+    file.stage = "FAILED";
+    file.error = error;
+  }
+
+  /** Point-in-time view of the job for the status endpoint. */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    snapshot.put("jobId", id);
+    snapshot.put("assistantId", assistantId);
+    snapshot.put("status", status);
+    snapshot.put("createdAt", createdAtMillis);
+
+    long elapsedNanos = 0;
+    if (startedAtNanos > 0) {
+      elapsedNanos = (isFinished() ? finishedAtNanos : System.nanoTime()) - startedAtNanos;
+    }
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    snapshot.put("elapsedMs", elapsedMillis);
+
+    Map<String, Object> chunks = new LinkedHashMap<>();
+    chunks.put("split", chunksSplit.get());
+    chunks.put("embedded", chunksEmbedded.get());
+    chunks.put("indexed", chunksIndexed.get());
+    chunks.put(
+        "indexedPerSecond",
+        elapsedMillis > 0 ? chunksIndexed.get() * 1000.0 / elapsedMillis : 0.0);
+    snapshot.put("chunks", chunks);
+
+    Map<String, Object> fileViews = new LinkedHashMap<>();
+    files.forEach(
+        (url, file) -> {
+          Map<String, Object> view = new LinkedHashMap<>();
+          view.put("stage", file.stage);
+          view.put("newChunks", file.newChunks);
+          view.put("keptChunks", file.keptChunks);
+          view.put("embedded", file.embedded.get());
+          view.put("indexed", file.indexed.get());
+          if (file.error != null) {
+            view.put("error", file.error);
+          }
+          fileViews.put(url, view);
+        });
+    snapshot.put("files", fileViews);
+
+    if (completion.isDone() && !completion.isCompletedExceptionally()) {
+      snapshot.put("result", completion.join());
+    }
+    if (error != null) {
+      snapshot.put("error", error);
+    }
+    return snapshot;
+  }
+
+  private FileProgress file(String url) {
+    // 文件列表在提交时确定，之后只读
+    FileProgress file = files.get(url);
+    return file != null ? file : new FileProgress();
+  }
+
+  private static String sourceUrl(Document chunk) {
+    return String.valueOf(chunk.getMetadata().get("sourceUrl"));
+  }
+}
@@ -0,0 +1,218 @@
+package com.alienpoop.poopmcpclient.service;
+
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+
+/**
+ * Runs knowledge base uploads as background jobs so request threads return immediately.
+ *
+ * <p>At most {@code max-concurrent} jobs run at a time and at most {@code max-queued} wait;
+ * further submissions are rejected with a {@link java.util.concurrent.RejectedExecutionException}
+ * rather than queued without bound, so a burst of uploads cannot take over the ingestion pipeline
+ * and the Ollama embedding capacity the chat traffic also needs. Finished jobs stay queryable for
+ * {@code retention}.
+ *
+ * <p>Jobs of the same assistant run one after another in submission order: a job replaces the
+ * chunks it read when it started, so two overlapping jobs would each keep the other's chunks. A
+ * job submitted while another of its assistant is queued or running waits behind it, and counts
+ * against {@code max-queued} while it waits. Deleting an assistant's knowledge base goes through
+ * the same chain via {@link #runExclusive}.
+ */
+@Component
+@Slf4j
+public class IngestionJobService implements MetricsSource {
+
+  @Autowired private KnowledgeIngestionService knowledgeIngestionService;
+
+  @Value("${knowledge.jobs.retention:1h}")
+  private Duration retention;
+
+  private final int maxQueued;
+  private final ThreadPoolExecutor executor;
+  private final Map<String, IngestionJob> jobs = new ConcurrentHashMap<>();
+  // 每个助手正在执行的任务之后排队的任务，键存在表示该助手已有任务在线程池中
+  private final Map<String, Deque<Runnable>> chains = new HashMap<>();
+  private int chained;
+
+  public IngestionJobService(
+      @Value("${knowledge.jobs.max-concurrent:2}") int maxConcurrent,
+      @Value("${knowledge.jobs.max-queued:100}") int maxQueued) {
+    this.maxQueued = maxQueued;
+    AtomicInteger counter = new AtomicInteger();
+    this.executor =
+        new ThreadPoolExecutor(
+            maxConcurrent,
+            maxConcurrent,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(maxQueued),
+            r -> {
+              Thread thread = new Thread(r, "ingestion-job-" + counter.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /** Queues an upload and returns its job right away. */
+  public IngestionJob submit(String assistantId, String fileURL) {
+    Set<String> urls = KnowledgeIngestionService.parseUrls(fileURL);
+    IngestionJob job = new IngestionJob(UUID.randomUUID().toString(), assistantId, urls);
+    boolean behind;
+    synchronized (chains) {
+      behind = enqueue(assistantId, () -> run(job, fileURL));
+      jobs.put(job.getId(), job);
+    }
+    log.info(
+        "Queued ingestion job {} for assistantId {} ({} files{})",
+        job.getId(),
+        assistantId,
+        urls.size(),
+        behind ? ", behind a running job" : "");
+    return job;
+  }
+
+  /**
+   * Runs {@code task} for the assistant once its queued and running jobs have finished, so it sees
+   * the index as they left it and no job started before it writes afterwards.
+   */
+  public <T> CompletableFuture<T> runExclusive(String assistantId, Callable<T> task) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    synchronized (chains) {
+      enqueue(
+          assistantId,
+          () -> {
+            try {
+              result.complete(task.call());
+            } catch (Exception e) {
+              result.completeExceptionally(e);
+            }
+          });
+    }
+    return result;
+  }
+
+  /** Queues a task behind the assistant's chain, or starts a chain; true if it had to wait. */
+  private boolean enqueue(String assistantId, Runnable task) {
+    Deque<Runnable> waiting = chains.get(assistantId);
+    if (waiting != null) {
+      if (chained + executor.getQueue().size() >= maxQueued) {
+        throw new RejectedExecutionException("Ingestion job queue is full");
+      }
+      waiting.add(task);
+      chained++;
+      return true;
+    }
+    chains.put(assistantId, new ArrayDeque<>());
+    try {
+      executor.execute(() -> runChain(assistantId, task));
+    } catch (RuntimeException e) {
+      chains.remove(assistantId);
+      throw e;
+    }
+    return false;
+  }
+
+  /** Runs the jobs of one assistant on this worker until none is waiting. */
+  private void runChain(String assistantId, Runnable first) {
+    Runnable next = first;
+    while (next != null) {
+      try {
+        next.run();
+      } catch (RuntimeException e) {
+        log.error("Ingestion job for assistantId {} failed to run", assistantId, e);
+      }
+      synchronized (chains) {
+        next = chains.get(assistantId).poll();
+        if (next == null) {
+          chains.remove(assistantId);
+        } else {
+          chained--;
+        }
+      }
+    }
+  }
+
+  public IngestionJob getJob(String jobId) {
+    return jobs.get(jobId);
+  }
+
+  /** Runs a job on a worker thread, holding the worker until the pipeline terminates. */
+  private void run(IngestionJob job, String fileURL) {
+    if (!job.start()) {
+      return;
+    }
+    CountDownLatch done = new CountDownLatch(1);
+    Disposable subscription =
+        knowledgeIngestionService
+            .ingest(job.getAssistantId(), fileURL, job)
+            .doFinally(signal -> done.countDown())
+            .subscribe(job::succeed, job::fail);
+    job.attach(subscription);
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      subscription.dispose();
+      Thread.currentThread().interrupt();
+    }
+    log.info("Ingestion job {} finished: {}", job.getId(), job.getStatus());
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void evictFinishedJobs() {
+    long cutoff = System.currentTimeMillis() - retention.toMillis();
+    jobs.values().removeIf(job -> job.isFinished() && job.getFinishedAtMillis() < cutoff);
+    log.info("Ingestion Jobs: {}", getMetrics());
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "ingestionJobs";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    Map<IngestionJob.Status, Integer> byStatus = new LinkedHashMap<>();
+    for (IngestionJob.Status status : IngestionJob.Status.values()) {
+      byStatus.put(status, 0);
+    }
+    jobs.values().forEach(job -> byStatus.merge(job.getStatus(), 1, Integer::sum));
+    metrics.put("jobs", byStatus);
+    metrics.put("activeWorkers", executor.getActiveCount());
+    metrics.put("queued", executor.getQueue().size());
+    synchronized (chains) {
+      metrics.put("waitingOnAssistant", chained);
+    }
+    return metrics;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    jobs.values().forEach(IngestionJob::cancel);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,543 @@
+package com.alienpoop.poopmcpclient.service;
+
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.alienpoop.poopmcpclient.dto.IngestionResult;
+import com.alienpoop.poopmcpclient.service.ElasticsearchKnowledgeIndex.ChunkFingerprint;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.reader.tika.TikaDocumentReader;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+import reactor.util.retry.RetryBackoffSpec;
+
+/**
+ * Incremental knowledge base upload. An upload still replaces the assistant's knowledge base with
+ * the given files, but only the difference is written.
+ *
+ * <p>Each chunk is stored with {@code sourceUrl}, the SHA-256 of the file it came from ({@code
+ * sourceHash}) and the SHA-256 of its own text ({@code chunkHash}), under an id derived from
+ * assistantId, URL and chunk hash. A file whose hash matches its stored chunks is not parsed at
+ * all; a changed file is parsed and split, and only chunks not already indexed are embedded. Chunks
+ * of files no longer listed, or no longer produced by their file, are deleted after the new ones
+ * are in, so the assistant never sees an empty knowledge base mid-upload.
+ *
+ * <p>Files go through a staged pipeline (fetch, parse, split, embed, index) on a dedicated bounded
+ * scheduler. Each stage has its own concurrency and requests one item at a time from the stage
+ * before it, so a slow stage holds back the ones upstream instead of piling up parsed documents.
+ * New chunks are embedded and indexed in batches that are retried on their own; a file whose fetch,
+ * parse or batch still fails is reported and its previously indexed chunks are kept.
+ */
+@Component
+@Slf4j
+public class KnowledgeIngestionService {
+
+  @Autowired private VectorStore vectorStore;
+  @Autowired private EmbeddingModel embeddingModel;
+  @Autowired private ElasticsearchKnowledgeIndex knowledgeIndex;
+  @Autowired private KnowledgeSearchService knowledgeSearchService;
+
+  @Value("${knowledge.ingestion.threads:8}")
+  private int threads;
+
+  @Value("${knowledge.ingestion.fetch-concurrency:4}")
+  private int fetchConcurrency;
+
+  @Value("${knowledge.ingestion.parse-concurrency:2}")
+  private int parseConcurrency;
+
+  @Value("${knowledge.ingestion.split-concurrency:2}")
+  private int splitConcurrency;
+
+  @Value("${knowledge.ingestion.batch-size:64}")
+  private int batchSize;
+
+  @Value("${knowledge.ingestion.embed-concurrency:2}")
+  private int embedConcurrency;
+
+  @Value("${knowledge.ingestion.index-concurrency:2}")
+  private int indexConcurrency;
+
+  @Value("${knowledge.ingestion.retries:3}")
+  private int retries;
+
+  @Value("${knowledge.ingestion.retry-backoff:500ms}")
+  private Duration retryBackoff;
+
+  @Value("${knowledge.ingestion.streaming.threshold:8MB}")
+  private DataSize streamingThreshold;
+
+  @Value("${knowledge.ingestion.streaming.window:32}")
+  private int streamingWindow;
+
+  private static final int CHUNK_SIZE = 200;
+  private static final int MIN_CHUNK_SIZE_CHARS = 200;
+  private static final int MIN_CHUNK_LENGTH_TO_EMBED = 5;
+  private static final int MAX_NUM_CHUNKS = 10000;
+
+  private final ResourceLoader resourceLoader = new DefaultResourceLoader();
+  private final StreamingDocumentSplitter streamingSplitter =
+      new StreamingDocumentSplitter(
+          CHUNK_SIZE, MIN_CHUNK_SIZE_CHARS, MIN_CHUNK_LENGTH_TO_EMBED, MAX_NUM_CHUNKS);
+
+  private Scheduler scheduler;
+  private ExecutorService parserExecutor;
+
+  @PostConstruct
+  public void init() {
+    scheduler = Schedulers.newBoundedElastic(threads, threads * 64, "knowledge-ingestion");
+    // 流式解析线程在下游没有需求时阻塞等待，不能占用 scheduler 的线程
+    AtomicInteger counter = new AtomicInteger();
+    parserExecutor =
+        Executors.newFixedThreadPool(
+            splitConcurrency,
+            r -> {
+              Thread thread = new Thread(r, "knowledge-parser-" + counter.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Receives per-file and per-batch progress of an upload, from the pipeline's threads. */
+  public interface IngestionListener {
+
+    IngestionListener NONE = new IngestionListener() {};
+
+    default void onFileStage(String url, String stage) {}
+
+    default void onFileSplit(String url, int newChunks, int keptChunks) {}
+
+    default void onChunksEmbedded(List<Document> batch) {}
+
+    default void onChunksIndexed(List<Document> batch) {}
+
+    default void onFileFailed(String url, String error) {}
+  }
+
+  public Mono<IngestionResult> ingest(String assistantId, String fileURL) {
+    return ingest(assistantId, fileURL, IngestionListener.NONE);
+  }
+
+  /**
+   * Ingests the comma-separated {@code fileURL} list as the assistant's knowledge base. Cancelling
+   * the subscription stops the pipeline before anything is deleted; batches already indexed stay
+   * and are picked up as existing chunks by the next upload.
+   */
+  public Mono<IngestionResult> ingest(
+      String assistantId, String fileURL, IngestionListener listener) {
+    Set<String> urls = parseUrls(fileURL);
+    return Mono.fromCallable(() -> knowledgeIndex.listChunks(assistantId))
+        .subscribeOn(scheduler)
+        .flatMap(chunks -> run(new Upload(assistantId, urls, chunks, listener)))
+        .doFinally(signal -> knowledgeSearchService.bumpGeneration(assistantId));
+  }
+
+  /** Splits the comma-separated {@code fileURL} of an upload request into distinct URLs. */
+  public static Set<String> parseUrls(String fileURL) {
+    Set<String> urls = new LinkedHashSet<>();
+    for (String url : StrUtil.nullToEmpty(fileURL).split(",")) {
+      if (StrUtil.isNotBlank(url)) {
+        urls.add(url.trim());
+      }
+    }
+    return urls;
+  }
+
+  private Mono<IngestionResult> run(Upload upload) {
+    return Flux.fromIterable(upload.files.values())
+        .flatMap(this::fetch, fetchConcurrency, 1)
+        .flatMap(this::parse, parseConcurrency, 1)
+        .flatMap(this::split, splitConcurrency, 1)
+        .buffer(batchSize)
+        .flatMap(batch -> embed(upload, batch), embedConcurrency, 1)
+        .flatMap(batch -> index(upload, batch), indexConcurrency, 1)
+        .then(Mono.fromCallable(() -> finish(upload)).subscribeOn(scheduler))
+        .doFinally(signal -> upload.files.values().forEach(FileState::deleteTempFile));
+  }
+
+  private Mono<FileState> fetch(FileState file) {
+    return Mono.fromCallable(
+            () -> {
+              file.upload.listener.onFileStage(file.url, "FETCHING");
+              download(file);
+              return file;
+            })
+        .subscribeOn(scheduler)
+        .retryWhen(retry())
+        .filter(
+            fetched -> {
+              if (fetched.isUnchanged()) {
+                fetched.skip();
+                file.upload.listener.onFileStage(file.url, "SKIPPED");
+                log.info("Unchanged, skipping: {} ({} chunks)", file.url, file.existing.size());
+                return false;
+              }
+              return true;
+            })
+        .onErrorResume(e -> fail(file, e));
+  }
+
+  private Mono<FileState> parse(FileState file) {
+    return Mono.fromCallable(
+            () -> {
+              if (file.size > streamingThreshold.toBytes()) {
+                // 大文件在 split 阶段边解析边切分
+                return file;
+              }
+              file.upload.listener.onFileStage(file.url, "PARSING");
+              String filename = filenameOf(file.url);
+              Resource resource =
+                  new FileSystemResource(file.tempFile) {
+                    @Override
+                    public String getFilename() {
+                      return filename;
+                    }
+                  };
+              file.documents = new TikaDocumentReader(resource).read();
+              file.deleteTempFile();
+              return file;
+            })
+        .subscribeOn(scheduler)
+        .onErrorResume(e -> fail(file, e));
+  }
+
+  /** Splits a parsed file and emits only the chunks that are not indexed yet. */
+  private Flux<Document> split(FileState file) {
+    if (file.size > streamingThreshold.toBytes()) {
+      return streamingSplit(file);
+    }
+    return Mono.fromCallable(
+            () -> {
+              file.upload.listener.onFileStage(file.url, "SPLITTING");
+              List<Document> documents =
+                  new TokenTextSplitter(
+                          CHUNK_SIZE,
+                          MIN_CHUNK_SIZE_CHARS,
+                          MIN_CHUNK_LENGTH_TO_EMBED,
+                          MAX_NUM_CHUNKS,
+                          true)
+                      .apply(file.documents);
+              file.documents = null;
+
+              Set<String> existingIds = new LinkedHashSet<>();
+              file.existing.forEach(chunk -> existingIds.add(chunk.id()));
+              Map<String, Document> added = new LinkedHashMap<>();
+              for (Document document : documents) {
+                Document chunk = toChunk(file, document);
+                if (existingIds.contains(chunk.getId())) {
+                  file.keptIds.add(chunk.getId());
+                } else {
+                  added.putIfAbsent(chunk.getId(), chunk);
+                }
+              }
+              log.info(
+                  "Changed: {} ({} new chunks, {} kept)",
+                  file.url,
+                  added.size(),
+                  file.keptIds.size());
+              file.upload.listener.onFileSplit(file.url, added.size(), file.keptIds.size());
+              return added.values();
+            })
+        .subscribeOn(scheduler)
+        .flatMapMany(Flux::fromIterable)
+        .onErrorResume(e -> fail(file, e));
+  }
+
+  /**
+   * Streams a large file through Tika and the token splitter without holding its text, emitting
+   * new chunks at most {@code streaming.window} ahead of what embedding has consumed.
+   */
+  private Flux<Document> streamingSplit(FileState file) {
+    file.upload.listener.onFileStage(file.url, "STREAMING");
+    Map<String, Object> source = Map.of("source", filenameOf(file.url));
+    Set<String> existingIds = new HashSet<>();
+    file.existing.forEach(chunk -> existingIds.add(chunk.id()));
+    Set<String> addedIds = new HashSet<>();
+
+    return streamingSplitter
+        .split(file.tempFile, parserExecutor)
+        .limitRate(streamingWindow)
+        .map(text -> toChunk(file, new Document(text, source)))
+        .filter(
+            chunk -> {
+              if (existingIds.contains(chunk.getId())) {
+                file.keptIds.add(chunk.getId());
+                return false;
+              }
+              return addedIds.add(chunk.getId());
+            })
+        .doOnComplete(
+            () -> {
+              file.deleteTempFile();
+              log.info(
+                  "Changed: {} ({} new chunks, {} kept, streamed)",
+                  file.url,
+                  addedIds.size(),
+                  file.keptIds.size());
+              file.upload.listener.onFileSplit(file.url, addedIds.size(), file.keptIds.size());
+            })
+        .onErrorResume(e -> fail(file, e));
+  }
+
+  /** Downloads a file to a temp file, hashing it on the way, so it is never held in memory. */
+  private void download(FileState file) throws IOException {
+    file.deleteTempFile();
+    Path tempFile = Files.createTempFile("knowledge-", ".tmp");
+    file.tempFile = tempFile;
+    MessageDigest digest = sha256();
+    try (InputStream in =
+        new DigestInputStream(resourceLoader.getResource(file.url).getInputStream(), digest)) {
+      file.size = Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+    file.sourceHash = HexUtil.encodeHexStr(digest.digest());
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private String filenameOf(String url) {
+    return resourceLoader.getResource(url).getFilename();
+  }
+
+  private Document toChunk(FileState file, Document document) {
+    String chunkHash = DigestUtil.sha256Hex(document.getText());
+    String id = chunkId(file.upload.assistantId, file.url, chunkHash);
+    Map<String, Object> metadata = new HashMap<>(document.getMetadata());
+    metadata.put("assistantId", file.upload.assistantId);
+    metadata.put("sourceUrl", file.url);
+    metadata.put("sourceHash", file.sourceHash);
+    metadata.put("chunkHash", chunkHash);
+    return new Document(id, document.getText(), metadata);
+  }
+
+  /**
+   * Embeds a batch through the caching embedding model, so that the index stage that follows finds
+   * every vector in the cache and only writes to Elasticsearch.
+   */
+  private Mono<List<Document>> embed(Upload upload, List<Document> batch) {
+    return Mono.fromCallable(
+            () -> {
+              embeddingModel.embed(batch.stream().map(Document::getText).toList());
+              upload.listener.onChunksEmbedded(batch);
+              return batch;
+            })
+        .subscribeOn(scheduler)
+        .retryWhen(retry())
+        .onErrorResume(e -> failBatch(upload, batch, e));
+  }
+
+  private Mono<List<Document>> index(Upload upload, List<Document> batch) {
+    return Mono.fromCallable(
+            () -> {
+              vectorStore.add(batch);
+              upload.added.addAndGet(batch.size());
+              upload.listener.onChunksIndexed(batch);
+              return batch;
+            })
+        .subscribeOn(scheduler)
+        .retryWhen(retry())
+        .onErrorResume(e -> failBatch(upload, batch, e));
+  }
+
+  private IngestionResult finish(Upload upload) throws IOException {
+    Set<String> staleIds = new LinkedHashSet<>(upload.existingIds);
+    Map<String, List<String>> rehashed = new LinkedHashMap<>();
+    Map<String, String> failedFiles = new LinkedHashMap<>();
+    int skippedFiles = 0;
+    int keptChunks = 0;
+
+    for (FileState file : upload.files.values()) {
+      if (file.error != null) {
+        // 失败的文件保留旧 chunk，下次上传时重新处理
+        failedFiles.put(file.url, file.error);
+        file.existing.forEach(chunk -> staleIds.remove(chunk.id()));
+        continue;
+      }
+      if (file.skipped) {
+        skippedFiles++;
+      } else if (!file.keptIds.isEmpty()) {
+        rehashed.computeIfAbsent(file.sourceHash, k -> new ArrayList<>()).addAll(file.keptIds);
+      }
+      staleIds.removeAll(file.keptIds);
+      keptChunks += file.keptIds.size();
+    }
+
+    // 新 chunk 写入成功后再更新保留 chunk 的 sourceHash，否则失败后文件会被误判为未变更
+    for (Map.Entry<String, List<String>> entry : rehashed.entrySet()) {
+      knowledgeIndex.updateSourceHash(entry.getValue(), entry.getKey());
+    }
+    if (!staleIds.isEmpty()) {
+      vectorStore.delete(new ArrayList<>(staleIds));
+    }
+
+    IngestionResult result =
+        new IngestionResult(
+            upload.files.size(),
+            skippedFiles,
+            upload.added.get(),
+            keptChunks,
+            staleIds.size(),
+            failedFiles);
+    log.info("Ingested knowledge base for assistantId {}: {}", upload.assistantId, result);
+    return result;
+  }
+
+  private <T> Mono<T> fail(FileState file, Throwable e) {
+    log.error("Failed to ingest {}: {}", file.url, e.getMessage(), e);
+    file.error = StrUtil.blankToDefault(e.getMessage(), e.getClass().getSimpleName());
+    file.deleteTempFile();
+    file.documents = null;
+    file.upload.listener.onFileFailed(file.url, file.error);
+    return Mono.empty();
+  }
+
+  private Mono<List<Document>> failBatch(Upload upload, List<Document> batch, Throwable e) {
+    Set<String> urls = new LinkedHashSet<>();
+    batch.forEach(chunk -> urls.add((String) chunk.getMetadata().get("sourceUrl")));
+    log.error("Failed to ingest {} chunks of {}: {}", batch.size(), urls, e.getMessage());
+    for (String url : urls) {
+      FileState file = upload.files.get(url);
+      if (file != null) {
+        file.error = "Batch failed: " + e.getMessage();
+        upload.listener.onFileFailed(url, file.error);
+      }
+    }
+    return Mono.empty();
+  }
+
+  private RetryBackoffSpec retry() {
+    return Retry.backoff(retries, retryBackoff)
+        .doBeforeRetry(
+            signal ->
+                log.warn(
+                    "Retrying ingestion step (attempt {}): {}",
+                    signal.totalRetries() + 1,
+                    signal.failure().getMessage()));
+  }
+
+  static String chunkId(String assistantId, String url, String chunkHash) {
+    String name = assistantId + '\n' + url + '\n' + chunkHash;
+    return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    scheduler.dispose();
+    parserExecutor.shutdownNow();
+  }
+
+  /** State of one upload shared by the pipeline stages. */
+  private static final class Upload {
+    private final String assistantId;
+    private final Set<String> existingIds = new LinkedHashSet<>();
+    private final Map<String, FileState> files = new LinkedHashMap<>();
+    private final AtomicInteger added = new AtomicInteger();
+    private final IngestionListener listener;
+
+    private Upload(
+        String assistantId,
+        Set<String> urls,
+        List<ChunkFingerprint> chunks,
+        IngestionListener listener) {
+      this.assistantId = assistantId;
+      this.listener = listener;
+      for (String url : urls) {
+        files.put(url, new FileState(this, url));
+      }
+      // 已有 chunk 按来源文件分组，旧版上传的 chunk 没有 sourceUrl，会在本次上传后被替换
+      for (ChunkFingerprint chunk : chunks) {
+        existingIds.add(chunk.id());
+        FileState file = chunk.sourceUrl() != null ? files.get(chunk.sourceUrl()) : null;
+        if (file != null) {
+          file.existing.add(chunk);
+        }
+      }
+    }
+  }
+
+  private static final class FileState {
+    private final Upload upload;
+    private final String url;
+    private final List<ChunkFingerprint> existing = new ArrayList<>();
+    private final Set<String> keptIds = ConcurrentHashMap.newKeySet();
+    private volatile String sourceHash;
+    private volatile Path tempFile;
+    private volatile long size;
+    private volatile List<Document> documents;
+    private volatile boolean skipped;
+    private volatile String error;
+
+    private FileState(Upload upload, String url) {
+      this.upload = upload;
+      this.url = url;
+    }
+
+    private void deleteTempFile() {
+      Path path = tempFile;
+      tempFile = null;
+      if (path != null) {
+        try {
+          Files.deleteIfExists(path);
+        } catch (IOException e) {
+          log.warn("Failed to delete temp file {}: {}", path, e.getMessage());
+        }
+      }
+    }
+
+    private boolean isUnchanged() {
+      return !existing.isEmpty()
+          && existing.stream().allMatch(chunk -> sourceHash.equals(chunk.sourceHash()));
+    }
+
+    private void skip() {
+      skipped = true;
+      deleteTempFile();
+      existing.forEach(chunk -> keptIds.add(chunk.id()));
+    }
+  }
+}
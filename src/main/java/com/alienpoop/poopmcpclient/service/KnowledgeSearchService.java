@@ -0,0 +1,253 @@
+package com.alienpoop.poopmcpclient.service;
+
+import cn.hutool.core.util.StrUtil;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.filter.FilterExpressionBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Knowledge base similarity search shared by the chat and knowledge endpoints, with a result
+ * cache keyed by assistantId, normalized query, topK, threshold and retrieval mode.
+ *
+ * <p>Every assistant carries a generation counter that knowledge base writes bump once they have
+ * finished; the generation is part of the cache key, so results cached before a write are never
+ * served after it. Searches without an assistant filter use a global generation bumped by every
+ * write. Results are not cached for {@code settle} after a write, while Elasticsearch may not have
+ * refreshed yet, and entries expire after {@code ttl} to bound staleness from writes made by other
+ * instances.
+ */
+@Component
+@Slf4j
+public class KnowledgeSearchService implements MetricsSource {
+
+  @Autowired private VectorStore vectorStore;
+  @Autowired private EmbeddingModel embeddingModel;
+  @Autowired private ElasticsearchKnowledgeIndex knowledgeIndex;
+
+  @Value("${knowledge.retrieval.mode:dense}")
+  private String defaultMode;
+
+  @Value("${knowledge.retrieval.hybrid-assistants:}")
+  private Set<String> hybridAssistants;
+
+  @Value("${knowledge.retrieval-cache.max-entries:5000}")
+  private int maxEntries;
+
+  @Value("${knowledge.retrieval-cache.ttl:10m}")
+  private Duration ttl;
+
+  @Value("${knowledge.retrieval-cache.settle:2s}")
+  private Duration settle;
+
+  private final Map<String, Generation> generations = new ConcurrentHashMap<>();
+  private final Generation globalGeneration = new Generation();
+
+  private final LinkedHashMap<Key, Entry> cache =
+      new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+          return size() > maxEntries;
+        }
+      };
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /** {@code DENSE} is kNN similarity only; {@code HYBRID} fuses BM25 and kNN with RRF. */
+  public enum Mode {
+    DENSE,
+    HYBRID;
+
+    /** Whether {@code mode} is blank or names a mode, ignoring case. */
+    public static boolean isValid(String mode) {
+      if (StrUtil.isBlank(mode)) {
+        return true;
+      }
+      try {
+        valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        return true;
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+    }
+
+    /** The named mode, or null when {@code mode} is blank or unknown. */
+    static Mode parse(String mode) {
+      if (StrUtil.isBlank(mode)) {
+        return null;
+      }
+      if (!isValid(mode)) {
+        log.warn("Unknown retrieval mode '{}', using the default", mode);
+        return null;
+      }
+      return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private record Key(
+      String assistantId,
+      String query,
+      int topK,
+      double threshold,
+      Mode mode,
+      long generation) {}
+
+  private record Entry(List<Document> documents, long createdAtNanos) {}
+
+  private static final class Generation {
+    private final AtomicLong value = new AtomicLong();
+    private volatile long lastWriteNanos = System.nanoTime() - Duration.ofDays(1).toNanos();
+  }
+
+  public List<Document> search(String assistantId, String query, int topK, double threshold) {
+    return search(assistantId, query, topK, threshold, null);
+  }
+
+  /**
+   * Searches with an explicit retrieval mode ({@code dense} or {@code hybrid}). A blank mode falls
+   * back to the assistant's configured mode: hybrid for assistants listed in {@code
+   * knowledge.retrieval.hybrid-assistants}, {@code knowledge.retrieval.mode} otherwise.
+   */
+  public List<Document> search(
+      String assistantId, String query, int topK, double threshold, String mode) {
+    String scope = StrUtil.isNotBlank(assistantId) ? assistantId : "";
+    Mode resolved = resolveMode(scope, mode);
+    Generation generation = scope.isEmpty() ? globalGeneration : generationOf(scope);
+    Key key =
+        new Key(scope, normalize(query), topK, threshold, resolved, generation.value.get());
+
+    long now = System.nanoTime();
+    synchronized (cache) {
+      Entry entry = cache.get(key);
+      if (entry != null && now - entry.createdAtNanos() < ttl.toNanos()) {
+        hits.increment();
+        return entry.documents();
+      }
+    }
+    misses.increment();
+
+    List<Document> documents =
+        resolved == Mode.HYBRID && StrUtil.isNotBlank(query)
+            ? hybridSearch(scope, query, topK, threshold)
+            : denseSearch(scope, query, topK, threshold);
+
+    if (now - generation.lastWriteNanos >= settle.toNanos()) {
+      synchronized (cache) {
+        cache.put(key, new Entry(documents, now));
+      }
+    }
+    return documents;
+  }
+
+  private List<Document> denseSearch(String scope, String query, int topK, double threshold) {
+    SearchRequest.Builder builder =
+        SearchRequest.builder()
+            .similarityThreshold(threshold)
+            .topK(topK)
+            .query(query != null ? query : "");
+    if (!scope.isEmpty()) {
+      FilterExpressionBuilder b = new FilterExpressionBuilder();
+      builder.filterExpression(b.eq("assistantId", scope).build());
+    }
+    SearchRequest searchRequest = builder.build();
+    log.info("searchRequest: {}", searchRequest);
+
+    return List.copyOf(vectorStore.similaritySearch(searchRequest));
+  }
+
+  private List<Document> hybridSearch(String scope, String query, int topK, double threshold) {
+    log.info("hybridSearch: query={}, assistantId={}, topK={}", query, scope, topK);
+    try {
+      float[] vector = embeddingModel.embed(query);
+      return knowledgeIndex.hybridSearch(scope, query, vector, topK, threshold);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Hybrid search failed", e);
+    }
+  }
+
+  private Mode resolveMode(String assistantId, String requested) {
+    Mode mode = Mode.parse(requested);
+    if (mode != null) {
+      return mode;
+    }
+    if (!assistantId.isEmpty() && hybridAssistants.contains(assistantId)) {
+      return Mode.HYBRID;
+    }
+    Mode fallback = Mode.parse(defaultMode);
+    return fallback != null ? fallback : Mode.DENSE;
+  }
+
+  /** Invalidates cached results of an assistant. Call after a knowledge base write completes. */
+  public void bumpGeneration(String assistantId) {
+    long now = System.nanoTime();
+    if (StrUtil.isNotBlank(assistantId)) {
+      Generation generation = generationOf(assistantId);
+      generation.value.incrementAndGet();
+      generation.lastWriteNanos = now;
+    }
+    globalGeneration.value.incrementAndGet();
+    globalGeneration.lastWriteNanos = now;
+  }
+
+  /** Current knowledge generation of an assistant, or the global one for a blank id. */
+  public long getGeneration(String assistantId) {
+    return StrUtil.isNotBlank(assistantId)
+        ? generationOf(assistantId).value.get()
+        : globalGeneration.value.get();
+  }
+
+  private Generation generationOf(String assistantId) {
+    return generations.computeIfAbsent(assistantId, id -> new Generation());
+  }
+
+  static String normalize(String query) {
+    if (query == null) {
+      return "";
+    }
+    return Normalizer.normalize(query, Normalizer.Form.NFKC).trim().replaceAll("\\s+", " ");
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "retrievalCache";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    synchronized (cache) {
+      metrics.put("entries", cache.size());
+    }
+    metrics.put("hits", hitCount);
+    metrics.put("misses", missCount);
+    metrics.put(
+        "hitRate", hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0.0);
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logCacheMetrics() {
+    log.info("Retrieval Cache: {}", getMetrics());
+  }
+}
@@ -0,0 +1,11 @@
+package com.alienpoop.poopmcpclient.service;
+
+import java.util.Map;
+
+/** A component that publishes its counters on the {@code /metrics} endpoint. */
+public interface MetricsSource {
+
+  String getMetricsName();
+
+  Map<String, Object> getMetrics();
+}
@@ -0,0 +1,351 @@
+package com.alienpoop.poopmcpclient.service;
+
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.ai.ollama.OllamaChatModel;
+import org.springframework.ai.ollama.OllamaEmbeddingModel;
+import org.springframework.ai.ollama.api.OllamaApi;
+import org.springframework.ai.ollama.api.OllamaOptions;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+
+/**
+ * The Ollama endpoints behind {@link RoutingChatModel} and {@link RoutingEmbeddingModel}.
+ *
+ * <p>Each request goes to the available node with the fewest outstanding requests. With an
+ * affinity key (the chat {@code sessionId}) the node is picked by rendezvous hashing instead, so a
+ * session keeps hitting the node that holds its KV cache, unless that node has more than {@code
+ * affinity-max-skew} requests more than the least loaded one. A node is taken out of rotation after
+ * {@code failure-threshold} consecutive errors or a failed {@code /api/version} probe and comes
+ * back with the next successful probe. A node whose latency average exceeds {@code
+ * latency-eject-factor} times the median of the other nodes is ejected for {@code eject-duration}.
+ */
+@Component
+@Slf4j
+public class OllamaNodePool implements MetricsSource {
+
+  @Autowired private ToolCallingManager toolCallingManager;
+  @Autowired private ObjectProvider<ObservationRegistry> observationRegistry;
+
+  // 逗号分隔的 Ollama 地址，默认只有 spring.ai.ollama.base-url 一个节点
+  @Value("${inference.pool.nodes:${spring.ai.ollama.base-url}}")
+  private String nodeUrls;
+
+  @Value("${spring.ai.ollama.chat.model}")
+  private String chatModel;
+
+  @Value("${spring.ai.ollama.embedding.model:mxbai-embed-large}")
+  private String embeddingModel;
+
+  @Value("${inference.residency.keep-alive:30m}")
+  private String keepAlive;
+
+  @Value("${inference.pool.affinity:true}")
+  private boolean affinity;
+
+  @Value("${inference.pool.affinity-max-skew:2}")
+  private int affinityMaxSkew;
+
+  @Value("${inference.pool.health-timeout:2s}")
+  private Duration healthTimeout;
+
+  @Value("${inference.pool.failure-threshold:3}")
+  private int failureThreshold;
+
+  @Value("${inference.pool.latency-eject-factor:3.0}")
+  private double latencyEjectFactor;
+
+  @Value("${inference.pool.latency-min-ms:500}")
+  private long latencyMinMs;
+
+  @Value("${inference.pool.eject-duration:30s}")
+  private Duration ejectDuration;
+
+  // 样本太少时 EWMA 主要反映首个请求的建连和加载耗时，不据此剔除
+  private static final int MIN_LATENCY_SAMPLES = 5;
+
+  private List<Node> nodes;
+  private final AtomicInteger cursor = new AtomicInteger();
+
+  public enum Kind {
+    CHAT,
+    EMBEDDING
+  }
+
+  public static final class Node {
+    private final String baseUrl;
+    private final OllamaChatModel chat;
+    private final OllamaEmbeddingModel embedding;
+    private final WebClient webClient;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+    // 按请求类型分别记录的延迟 EWMA（毫秒），-1 表示尚无样本
+    private final double[] latencyMs = {-1, -1};
+    private final int[] latencySamples = {0, 0};
+    private volatile boolean healthy = true;
+    private volatile long ejectedUntilNanos;
+
+    private Node(
+        String baseUrl, OllamaChatModel chat, OllamaEmbeddingModel embedding, WebClient webClient) {
+      this.baseUrl = baseUrl;
+      this.chat = chat;
+      this.embedding = embedding;
+      this.webClient = webClient;
+    }
+
+    public String getBaseUrl() {
+      return baseUrl;
+    }
+
+    OllamaChatModel chat() {
+      return chat;
+    }
+
+    OllamaEmbeddingModel embedding() {
+      return embedding;
+    }
+
+    WebClient webClient() {
+      return webClient;
+    }
+
+    private boolean isAvailable(long now) {
+      return healthy && (ejectedUntilNanos == 0 || now - ejectedUntilNanos >= 0);
+    }
+
+    private synchronized double latency(Kind kind) {
+      return latencyMs[kind.ordinal()];
+    }
+  }
+
+  @PostConstruct
+  public void init() {
+    ObservationRegistry registry = observationRegistry.getIfUnique(() -> ObservationRegistry.NOOP);
+    List<Node> built = new ArrayList<>();
+    for (String url : Arrays.stream(nodeUrls.split(",")).map(String::trim).distinct().toList()) {
+      if (url.isEmpty()) {
+        continue;
+      }
+      OllamaApi api = OllamaApi.builder().baseUrl(url).build();
+      OllamaChatModel chat =
+          OllamaChatModel.builder()
+              .ollamaApi(api)
+              .defaultOptions(OllamaOptions.builder().model(chatModel).build())
+              .toolCallingManager(toolCallingManager)
+              .observationRegistry(registry)
+              .build();
+      OllamaEmbeddingModel embedding =
+          OllamaEmbeddingModel.builder()
+              .ollamaApi(api)
+              .defaultOptions(
+                  OllamaOptions.builder().model(embeddingModel).keepAlive(keepAlive).build())
+              .observationRegistry(registry)
+              .build();
+      built.add(new Node(url, chat, embedding, WebClient.create(url)));
+    }
+    if (built.isEmpty()) {
+      throw new IllegalStateException("inference.pool.nodes is empty");
+    }
+    nodes = List.copyOf(built);
+    log.info("Ollama pool nodes: {}", nodes.stream().map(Node::getBaseUrl).toList());
+  }
+
+  public List<Node> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Picks a node and counts a request as outstanding on it; every call must be paired with {@link
+   * #release}.
+   */
+  public Node acquire(String affinityKey) {
+    long now = System.nanoTime();
+    List<Node> candidates = nodes.stream().filter(node -> node.isAvailable(now)).toList();
+    if (candidates.isEmpty()) {
+      // 全部不可用时仍然转发，让调用方拿到真实的错误
+      candidates = nodes;
+    }
+
+    // 从轮转位置开始扫描，负载相同时请求在节点间轮流分配
+    int start = Math.floorMod(cursor.getAndIncrement(), candidates.size());
+    Node least = null;
+    for (int i = 0; i < candidates.size(); i++) {
+      Node node = candidates.get((start + i) % candidates.size());
+      if (least == null || node.outstanding.get() < least.outstanding.get()) {
+        least = node;
+      }
+    }
+
+    Node chosen = least;
+    if (affinity && affinityKey != null && candidates.size() > 1) {
+      Node sticky = null;
+      long best = Long.MIN_VALUE;
+      for (Node node : candidates) {
+        long weight = rendezvousWeight(affinityKey, node.baseUrl);
+        if (sticky == null || weight > best) {
+          sticky = node;
+          best = weight;
+        }
+      }
+      if (sticky.outstanding.get() <= least.outstanding.get() + affinityMaxSkew) {
+        chosen = sticky;
+      }
+    }
+    chosen.outstanding.incrementAndGet();
+    chosen.requests.increment();
+    return chosen;
+  }
+
+  /** Ends a request started by {@link #acquire}; {@code latencyMs} below 0 skips the sample. */
+  public void release(Node node, Kind kind, double latencyMs, Throwable error) {
+    node.outstanding.decrementAndGet();
+    if (error != null) {
+      node.failures.increment();
+      if (node.consecutiveFailures.incrementAndGet() >= failureThreshold && node.healthy) {
+        node.healthy = false;
+        log.warn(
+            "Ollama node {} marked down after {} consecutive failures: {}",
+            node.baseUrl,
+            failureThreshold,
+            error.getMessage());
+      }
+      return;
+    }
+    node.consecutiveFailures.set(0);
+    if (latencyMs >= 0) {
+      record(node, kind, latencyMs);
+    }
+  }
+
+  private void record(Node node, Kind kind, double sample) {
+    double average;
+    int samples;
+    synchronized (node) {
+      double previous = node.latencyMs[kind.ordinal()];
+      average = previous < 0 ? sample : previous * 0.8 + sample * 0.2;
+      node.latencyMs[kind.ordinal()] = average;
+      samples = ++node.latencySamples[kind.ordinal()];
+    }
+    if (samples < MIN_LATENCY_SAMPLES || average < latencyMinMs) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    double[] others =
+        nodes.stream()
+            .filter(other -> other != node && other.isAvailable(now))
+            .mapToDouble(other -> other.latency(kind))
+            .filter(latency -> latency >= 0)
+            .sorted()
+            .toArray();
+    if (others.length == 0) {
+      return;
+    }
+    double median = others[others.length / 2];
+    if (average > median * latencyEjectFactor && node.isAvailable(now)) {
+      node.ejectedUntilNanos = now + ejectDuration.toNanos();
+      node.ejections.increment();
+      synchronized (node) {
+        // 回到轮转时从中位数重新开始，避免旧样本让它再次被剔除
+        node.latencyMs[kind.ordinal()] = median;
+        node.latencySamples[kind.ordinal()] = 0;
+      }
+      log.warn(
+          "Ollama node {} ejected for {}: {} latency {} ms vs median {} ms",
+          node.baseUrl,
+          ejectDuration,
+          kind,
+          Math.round(average),
+          Math.round(median));
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${inference.pool.health-check-interval-ms:10000}")
+  public void checkHealth() {
+    for (Node node : nodes) {
+      node.webClient
+          .get()
+          .uri("/api/version")
+          .retrieve()
+          .toBodilessEntity()
+          .timeout(healthTimeout)
+          .subscribe(
+              response -> {
+                if (!node.healthy) {
+                  log.info("Ollama node {} is back up", node.baseUrl);
+                }
+                node.consecutiveFailures.set(0);
+                node.healthy = true;
+              },
+              error -> {
+                if (node.healthy) {
+                  log.warn(
+                      "Ollama node {} failed health check: {}", node.baseUrl, error.getMessage());
+                }
+                node.healthy = false;
+              });
+    }
+  }
+
+  private static long rendezvousWeight(String key, String node) {
+    // FNV-1a 64 位，再做一次混合，保证各节点权重分布均匀
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : (key + "\n" + node).getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "ollamaPool";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    long now = System.nanoTime();
+    for (Node node : nodes) {
+      Map<String, Object> view = new LinkedHashMap<>();
+      view.put("healthy", node.healthy);
+      long ejectedFor = node.ejectedUntilNanos == 0 ? 0 : node.ejectedUntilNanos - now;
+      view.put("ejectedForMs", Math.max(0, TimeUnit.NANOSECONDS.toMillis(ejectedFor)));
+      view.put("outstanding", node.outstanding.get());
+      view.put("requests", node.requests.sum());
+      view.put("failures", node.failures.sum());
+      view.put("ejections", node.ejections.sum());
+      view.put("chatLatencyMs", Math.round(node.latency(Kind.CHAT)));
+      view.put("embeddingLatencyMs", Math.round(node.latency(Kind.EMBEDDING)));
+      metrics.put(node.baseUrl, view);
+    }
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logPoolMetrics() {
+    log.info("Ollama Pool: {}", getMetrics());
+  }
+}
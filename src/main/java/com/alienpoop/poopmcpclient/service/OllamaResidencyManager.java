@@ -0,0 +1,187 @@
+package com.alienpoop.poopmcpclient.service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.ollama.api.OllamaOptions;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Keeps the chat and embedding models loaded on every node of the {@link OllamaNodePool} so no
+ * request pays the model load.
+ *
+ * <p>Both models are loaded once the application is ready and pinged again every {@code
+ * ping-interval} with {@code keep-alive}; an empty {@code /api/generate} or {@code /api/embed}
+ * call only loads the model and resets its unload timer. Chat requests must use {@link
+ * #chatOptions()}: Ollama reloads a model whose {@code num_ctx} differs from the loaded one, so
+ * the warm-up and every request share the same value.
+ */
+@Component
+@Slf4j
+public class OllamaResidencyManager implements MetricsSource {
+
+  private static final ParameterizedTypeReference<Map<String, Object>> JSON_MAP =
+      new ParameterizedTypeReference<>() {};
+
+  @Autowired private OllamaNodePool pool;
+
+  @Value("${spring.ai.ollama.chat.model}")
+  private String chatModel;
+
+  @Value("${spring.ai.ollama.embedding.model:mxbai-embed-large}")
+  private String embeddingModel;
+
+  @Value("${inference.residency.enabled:true}")
+  private boolean enabled;
+
+  @Value("${inference.residency.keep-alive:30m}")
+  private String keepAlive;
+
+  // 0 表示沿用模型默认的上下文长度
+  @Value("${inference.residency.num-ctx:0}")
+  private int numCtx;
+
+  @Value("${inference.residency.ping-interval:4m}")
+  private Duration pingInterval;
+
+  @Value("${inference.residency.timeout:5m}")
+  private Duration timeout;
+
+  private final Map<String, ModelState> models = new ConcurrentHashMap<>();
+  private volatile long lastPingNanos;
+
+  private static final class ModelState {
+    private volatile boolean resident;
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder coldLoads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long lastLoadMs;
+    private volatile long lastPingMs;
+    private volatile String lastError;
+  }
+
+  /** Chat options carrying the residency settings; callers add their own options on top. */
+  public OllamaOptions.Builder chatOptions() {
+    OllamaOptions.Builder builder = OllamaOptions.builder().keepAlive(keepAlive);
+    if (numCtx > 0) {
+      builder.numCtx(numCtx);
+    }
+    return builder;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void warmUp() {
+    if (enabled) {
+      pingAll();
+    }
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void keepResident() {
+    if (enabled && System.nanoTime() - lastPingNanos >= pingInterval.toNanos()) {
+      pingAll();
+    }
+    log.info("Ollama Residency: {}", getMetrics());
+  }
+
+  private void pingAll() {
+    lastPingNanos = System.nanoTime();
+
+    Map<String, Object> options = new LinkedHashMap<>();
+    if (numCtx > 0) {
+      options.put("num_ctx", numCtx);
+    }
+    Map<String, Object> generate = new LinkedHashMap<>();
+    generate.put("model", chatModel);
+    generate.put("keep_alive", keepAlive);
+    generate.put("options", options);
+
+    Map<String, Object> embed = new LinkedHashMap<>();
+    embed.put("model", embeddingModel);
+    embed.put("keep_alive", keepAlive);
+
+    for (OllamaNodePool.Node node : pool.getNodes()) {
+      ping(node, chatModel, "/api/generate", generate);
+      ping(node, embeddingModel, "/api/embed", embed);
+    }
+  }
+
+  private void ping(OllamaNodePool.Node node, String model, String path, Map<String, Object> body) {
+    String name = model + "@" + node.getBaseUrl();
+    ModelState state = models.computeIfAbsent(name, key -> new ModelState());
+    long start = System.nanoTime();
+    node.webClient()
+        .post()
+        .uri(path)
+        .bodyValue(body)
+        .retrieve()
+        .bodyToMono(JSON_MAP)
+        .timeout(timeout)
+        .onErrorResume(
+            e -> {
+              state.resident = false;
+              state.failures.increment();
+              state.lastError = e.getMessage();
+              log.warn("Ollama warm-up of {} failed: {}", name, e.getMessage());
+              return Mono.empty();
+            })
+        .subscribe(
+            response -> {
+              state.pings.increment();
+              state.resident = true;
+              state.lastError = null;
+              state.lastPingMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+              // load_duration 为纳秒，模型已常驻时接近 0
+              Object loadDuration = response.get("load_duration");
+              long loadMs =
+                  loadDuration instanceof Number number
+                      ? TimeUnit.NANOSECONDS.toMillis(number.longValue())
+                      : 0;
+              if (loadMs >= 1000) {
+                state.coldLoads.increment();
+                state.lastLoadMs = loadMs;
+                log.info("Ollama model {} loaded in {} ms", name, loadMs);
+              }
+            });
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "ollamaResidency";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("enabled", enabled);
+    metrics.put("keepAlive", keepAlive);
+    Map<String, Object> views = new LinkedHashMap<>();
+    models.forEach(
+        (model, state) -> {
+          Map<String, Object> view = new LinkedHashMap<>();
+          view.put("resident", state.resident);
+          view.put("pings", state.pings.sum());
+          view.put("coldLoads", state.coldLoads.sum());
+          view.put("failures", state.failures.sum());
+          view.put("lastLoadMs", state.lastLoadMs);
+          view.put("lastPingMs", state.lastPingMs);
+          if (state.lastError != null) {
+            view.put("lastError", state.lastError);
+          }
+          views.put(model, view);
+        });
+    metrics.put("models", views);
+    return metrics;
+  }
+}
@@ -0,0 +1,331 @@
+package com.alienpoop.poopmcpclient.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.model.tool.DefaultToolCallingManager;
+import org.springframework.ai.model.tool.ToolCallingChatOptions;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.ai.model.tool.ToolExecutionResult;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.resolution.DelegatingToolCallbackResolver;
+import org.springframework.ai.tool.resolution.ToolCallbackResolver;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tool execution stage of the chat models: the tool calls of one model turn run concurrently and
+ * each gets its own timeout ({@code mcp.tools.timeout}, or the tool's entry in {@code
+ * mcp.tools.timeouts}).
+ *
+ * <p>A chat request that passes {@link #loopContext()} as its tool context also bounds the whole
+ * tool loop by {@code mcp.tools.loop-deadline}; a call never waits past it. A call that fails,
+ * times out or names an unknown tool is answered with a JSON error object instead, so the model can
+ * go on with the results it has.
+ *
+ * <p>The calls of all requests share one pool of {@code mcp.tools.threads} workers. A call's own
+ * timeout starts when a worker picks it up; a call still queued when the loop deadline passes is
+ * answered with a {@code busy} error.
+ */
+@Component
+@Slf4j
+public class ParallelToolCallingManager implements ToolCallingManager, MetricsSource {
+
+  /** Tool context key holding the {@link System#nanoTime()} deadline of the tool loop. */
+  public static final String LOOP_DEADLINE = "toolLoopDeadlineNanos";
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  @Autowired private ObjectProvider<ToolCallbackResolver> toolCallbackResolver;
+
+  @Value("${mcp.tools.timeout:60s}")
+  private Duration timeout;
+
+  // 逗号分隔，格式 name=timeout，name 为 MCP 工具名或带前缀的工具名
+  @Value("${mcp.tools.timeouts:}")
+  private List<String> timeouts;
+
+  @Value("${mcp.tools.loop-deadline:120s}")
+  private Duration loopDeadline;
+
+  @Value("${mcp.tools.threads:16}")
+  private int threads;
+
+  private final Map<String, Duration> toolTimeouts = new HashMap<>();
+  private ToolCallbackResolver resolver;
+  private DefaultToolCallingManager definitions;
+  private ExecutorService executor;
+
+  private final LongAdder rounds = new LongAdder();
+  private final LongAdder parallelRounds = new LongAdder();
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder timeoutsHit = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder deadlineExceeded = new LongAdder();
+  private final LongAdder busy = new LongAdder();
+
+  /** A submitted tool call, recording when a worker started it. */
+  private static final class Call implements Callable<String> {
+    private final Callable<String> task;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile long startedAt;
+    private Future<String> future;
+
+    private Call(Callable<String> task) {
+      this.task = task;
+    }
+
+    @Override
+    public String call() throws Exception {
+      startedAt = System.nanoTime();
+      started.countDown();
+      return task.call();
+    }
+  }
+
+  @PostConstruct
+  public void init() {
+    for (String spec : timeouts) {
+      int eq = spec.indexOf('=');
+      if (eq > 0) {
+        Duration value = DurationStyle.detectAndParse(spec.substring(eq + 1).trim());
+        toolTimeouts.put(spec.substring(0, eq).trim(), value);
+      }
+    }
+    resolver =
+        toolCallbackResolver.getIfAvailable(() -> new DelegatingToolCallbackResolver(List.of()));
+    definitions = DefaultToolCallingManager.builder().toolCallbackResolver(resolver).build();
+    AtomicInteger counter = new AtomicInteger();
+    executor =
+        Executors.newFixedThreadPool(
+            threads,
+            r -> {
+              Thread thread = new Thread(r, "tool-call-" + counter.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /** A tool context that starts the tool loop deadline of one chat request now. */
+  public Map<String, Object> loopContext() {
+    Map<String, Object> context = new HashMap<>();
+    context.put(LOOP_DEADLINE, System.nanoTime() + loopDeadline.toNanos());
+    return context;
+  }
+
+  @Override
+  public List<ToolDefinition> resolveToolDefinitions(ToolCallingChatOptions chatOptions) {
+    return definitions.resolveToolDefinitions(chatOptions);
+  }
+
+  @Override
+  public ToolExecutionResult executeToolCalls(Prompt prompt, ChatResponse chatResponse) {
+    AssistantMessage assistantMessage =
+        chatResponse.getResults().stream()
+            .map(Generation::getOutput)
+            .filter(AssistantMessage::hasToolCalls)
+            .findFirst()
+            .orElseThrow(() -> new IllegalStateException("No tool call requested by the model"));
+
+    List<ToolCallback> callbacks = List.of();
+    Map<String, Object> contextMap = new HashMap<>();
+    if (prompt.getOptions() instanceof ToolCallingChatOptions options) {
+      callbacks = options.getToolCallbacks();
+      if (options.getToolContext() != null) {
+        contextMap.putAll(options.getToolContext());
+      }
+    }
+    long start = System.nanoTime();
+    long deadline =
+        contextMap.remove(LOOP_DEADLINE) instanceof Long value
+            ? value
+            : start + loopDeadline.toNanos();
+    List<Message> history = new ArrayList<>(prompt.copy().getInstructions());
+    history.add(assistantMessage);
+    // 与默认实现一致：没有调用方上下文时传空上下文，不支持上下文的工具才不会报错
+    if (!contextMap.isEmpty()) {
+      contextMap.put(ToolContext.TOOL_CALL_HISTORY, List.copyOf(history));
+    }
+    ToolContext toolContext = new ToolContext(contextMap);
+
+    List<AssistantMessage.ToolCall> toolCalls = assistantMessage.getToolCalls();
+    rounds.increment();
+    if (toolCalls.size() > 1) {
+      parallelRounds.increment();
+    }
+
+    // 先全部提交，再按各自的截止时间依次等待，总耗时取决于最慢的那个调用
+    List<Call> submitted = new ArrayList<>(toolCalls.size());
+    List<ToolCallback> resolved = new ArrayList<>(toolCalls.size());
+    boolean returnDirect = true;
+    for (AssistantMessage.ToolCall toolCall : toolCalls) {
+      ToolCallback callback = resolve(toolCall.name(), callbacks);
+      resolved.add(callback);
+      if (callback == null || deadline - start <= 0) {
+        submitted.add(null);
+        returnDirect = false;
+        continue;
+      }
+      returnDirect &= callback.getToolMetadata().returnDirect();
+      calls.increment();
+      Call call = new Call(() -> callback.call(toolCall.arguments(), toolContext));
+      call.future = executor.submit(call);
+      submitted.add(call);
+    }
+
+    List<ToolResponseMessage.ToolResponse> responses = new ArrayList<>(toolCalls.size());
+    for (int i = 0; i < toolCalls.size(); i++) {
+      AssistantMessage.ToolCall toolCall = toolCalls.get(i);
+      String result = await(toolCall.name(), resolved.get(i), submitted.get(i), deadline);
+      responses.add(new ToolResponseMessage.ToolResponse(toolCall.id(), toolCall.name(), result));
+    }
+
+    ToolResponseMessage toolResponseMessage = new ToolResponseMessage(responses, Map.of());
+    history.add(toolResponseMessage);
+    return ToolExecutionResult.builder()
+        .conversationHistory(history)
+        .returnDirect(returnDirect)
+        .build();
+  }
+
+  private ToolCallback resolve(String name, List<ToolCallback> callbacks) {
+    for (ToolCallback callback : callbacks) {
+      if (callback.getToolDefinition().name().equals(name)) {
+        return callback;
+      }
+    }
+    return resolver.resolve(name);
+  }
+
+  private String await(String name, ToolCallback callback, Call call, long deadline) {
+    if (callback == null) {
+      failures.increment();
+      return error("unknown_tool", name, "No such tool");
+    }
+    if (call == null) {
+      deadlineExceeded.increment();
+      return error(
+          "deadline_exceeded",
+          name,
+          "The tool time budget of this request is used up; answer with the results you have");
+    }
+    Future<String> future = call.future;
+    try {
+      // 超时从工作线程开始执行时算起，排队时间只受整个循环的截止时间限制
+      long queueWait = Math.max(0, deadline - System.nanoTime());
+      if (!call.started.await(queueWait, TimeUnit.NANOSECONDS) || call.startedAt - deadline >= 0) {
+        future.cancel(true);
+        busy.increment();
+        log.warn("Tool {} was still queued for a worker at the loop deadline", name);
+        return error(
+            "busy", name, "No tool worker was free within the tool time budget of this request");
+      }
+      long callDeadline = Math.min(deadline, call.startedAt + timeoutOf(name).toNanos());
+      try {
+        return future.get(Math.max(0, callDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        future.cancel(true);
+        boolean loop = callDeadline == deadline;
+        (loop ? deadlineExceeded : timeoutsHit).increment();
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(callDeadline - call.startedAt);
+        log.warn("Tool {} gave no result within {} ms", name, waitedMs);
+        return error(
+            loop ? "deadline_exceeded" : "timeout", name, "No result within " + waitedMs + " ms");
+      } catch (ExecutionException e) {
+        failures.increment();
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        log.warn("Tool {} failed: {}", name, cause.getMessage());
+        return error("failed", name, String.valueOf(cause.getMessage()));
+      }
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      return error("cancelled", name, "The request was cancelled");
+    }
+  }
+
+  private Duration timeoutOf(String name) {
+    Duration configured = toolTimeouts.get(name);
+    if (configured != null) {
+      return configured;
+    }
+    // 模型看到的是带服务器前缀的名字，按结尾匹配 MCP 工具名，取最长的匹配
+    String matched = null;
+    for (String key : toolTimeouts.keySet()) {
+      if (name.endsWith("_" + key) && (matched == null || key.length() > matched.length())) {
+        matched = key;
+      }
+    }
+    return matched != null ? toolTimeouts.get(matched) : timeout;
+  }
+
+  private static String error(String error, String tool, String message) {
+    Map<String, Object> body = new LinkedHashMap<>();
+    body.put("error", error);
+    body.put("tool", tool);
+    body.put("message", message);
+    try {
+      return JSON.writeValueAsString(body);
+    } catch (JsonProcessingException e) {
+      return "{\"error\":\"" + error + "\"}";
+    }
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "toolCalls";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("rounds", rounds.sum());
+    metrics.put("parallelRounds", parallelRounds.sum());
+    metrics.put("calls", calls.sum());
+    metrics.put("timeouts", timeoutsHit.sum());
+    metrics.put("deadlineExceeded", deadlineExceeded.sum());
+    metrics.put("busy", busy.sum());
+    metrics.put("failures", failures.sum());
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logToolCallMetrics() {
+    log.info("Tool Calls: {}", getMetrics());
+  }
+}
@@ -0,0 +1,225 @@
+package com.alienpoop.poopmcpclient.service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reply cache for stateless chat requests (tool-only requests and sessions without history).
+ *
+ * <p>Replies are stored per {@link Scope}, everything besides the user text that shapes the
+ * prompt. A lookup first tries the normalized text exactly, then the cached entry of the same scope
+ * whose text embedding is closest, if its cosine similarity reaches {@code semantic.threshold}.
+ * Identical requests that miss at the same time share one generation: the first becomes the
+ * leader of a {@link Flight}, the others wait for its reply.
+ */
+@Component
+@Slf4j
+public class ResponseCache implements MetricsSource {
+
+  @Autowired private EmbeddingModel embeddingModel;
+
+  @Value("${inference.response-cache.enabled:true}")
+  private boolean enabled;
+
+  @Value("${inference.response-cache.max-entries:2000}")
+  private int maxEntries;
+
+  @Value("${inference.response-cache.ttl:10m}")
+  private Duration ttl;
+
+  @Value("${inference.response-cache.semantic.enabled:true}")
+  private boolean semanticEnabled;
+
+  @Value("${inference.response-cache.semantic.threshold:0.97}")
+  private double semanticThreshold;
+
+  @Value("${inference.response-cache.semantic.ttl:10m}")
+  private Duration semanticTtl;
+
+  @Value("${inference.response-cache.flight-timeout:60s}")
+  private Duration flightTimeout;
+
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private final Map<Key, CompletableFuture<String>> flights = new ConcurrentHashMap<>();
+
+  private final LongAdder exactHits = new LongAdder();
+  private final LongAdder semanticHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder sharedFlights = new LongAdder();
+
+  /** Everything besides the user text that the reply depends on. */
+  public record Scope(
+      String model,
+      String assistantId,
+      String customSystemPrompt,
+      boolean onlyTool,
+      boolean enableTool,
+      boolean enableVectorStore,
+      String retrievalMode,
+      long knowledgeGeneration) {}
+
+  private record Key(Scope scope, String text) {}
+
+  private record Entry(String reply, float[] vector, long createdAtNanos) {}
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Returns a cached reply for {@code text}, or null. */
+  public String get(Scope scope, String text) {
+    Key key = new Key(scope, KnowledgeSearchService.normalize(text));
+    long now = System.nanoTime();
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && now - entry.createdAtNanos() < ttl.toNanos()) {
+        exactHits.increment();
+        return entry.reply();
+      }
+    }
+
+    if (semanticEnabled && !key.text().isEmpty()) {
+      float[] vector = embeddingModel.embed(key.text());
+      Entry best = null;
+      double bestSimilarity = semanticThreshold;
+      synchronized (entries) {
+        for (Map.Entry<Key, Entry> candidate : entries.entrySet()) {
+          Entry entry = candidate.getValue();
+          if (!candidate.getKey().scope().equals(scope)
+              || entry.vector() == null
+              || now - entry.createdAtNanos() >= semanticTtl.toNanos()) {
+            continue;
+          }
+          double similarity = ContextPacker.cosine(vector, entry.vector());
+          if (similarity >= bestSimilarity) {
+            best = entry;
+            bestSimilarity = similarity;
+          }
+        }
+      }
+      if (best != null) {
+        semanticHits.increment();
+        log.info(
+            "Response cache semantic hit, similarity {}", String.format("%.4f", bestSimilarity));
+        return best.reply();
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  public void put(Scope scope, String text, String reply) {
+    Key key = new Key(scope, KnowledgeSearchService.normalize(text));
+    float[] vector =
+        semanticEnabled && !key.text().isEmpty() ? embeddingModel.embed(key.text()) : null;
+    synchronized (entries) {
+      entries.put(key, new Entry(reply, vector, System.nanoTime()));
+      while (entries.size() > maxEntries) {
+        entries.remove(entries.keySet().iterator().next());
+      }
+    }
+  }
+
+  /** Joins the in-flight generation for {@code text}, or starts one with the caller as leader. */
+  public Flight join(Scope scope, String text) {
+    Key key = new Key(scope, KnowledgeSearchService.normalize(text));
+    CompletableFuture<String> future = new CompletableFuture<>();
+    CompletableFuture<String> running = flights.putIfAbsent(key, future);
+    if (running != null) {
+      sharedFlights.increment();
+      return new Flight(key, running, false);
+    }
+    return new Flight(key, future, true);
+  }
+
+  /** One generation shared by identical concurrent requests. */
+  public final class Flight {
+    private final Key key;
+    private final CompletableFuture<String> future;
+    private final boolean leader;
+
+    private Flight(Key key, CompletableFuture<String> future, boolean leader) {
+      this.key = key;
+      this.future = future;
+      this.leader = leader;
+    }
+
+    public boolean isLeader() {
+      return leader;
+    }
+
+    /**
+     * The leader's reply without blocking; empty if the leader failed or outlasted {@code
+     * flight-timeout}. Cancelling it leaves the flight running for the other requests.
+     */
+    public Mono<String> reply() {
+      return Mono.fromFuture(future, true).timeout(flightTimeout).onErrorResume(e -> Mono.empty());
+    }
+
+    /** Waits for the leader's reply; null if it failed or outlasted {@code flight-timeout}. */
+    public String await() {
+      try {
+        return future.get(flightTimeout.toMillis(), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (Exception e) {
+        return null;
+      }
+    }
+
+    /** Caches the leader's reply and hands it to the waiting requests. */
+    public void complete(String reply) {
+      try {
+        put(key.scope(), key.text(), reply);
+      } catch (RuntimeException e) {
+        log.warn("Failed to cache reply: {}", e.getMessage());
+      } finally {
+        flights.remove(key, future);
+        future.complete(reply);
+      }
+    }
+
+    /** Ends the flight without a reply, so waiting requests generate their own. */
+    public void abandon() {
+      flights.remove(key, future);
+      future.complete(null);
+    }
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "responseCache";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    synchronized (entries) {
+      metrics.put("entries", entries.size());
+    }
+    metrics.put("exactHits", exactHits.sum());
+    metrics.put("semanticHits", semanticHits.sum());
+    metrics.put("misses", misses.sum());
+    metrics.put("sharedFlights", sharedFlights.sum());
+    metrics.put("inFlight", flights.size());
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logResponseCacheMetrics() {
+    log.info("Response Cache: {}", getMetrics());
+  }
+}
@@ -0,0 +1,98 @@
+package com.alienpoop.poopmcpclient.service;
+
+import com.alienpoop.poopmcpclient.service.OllamaNodePool.Kind;
+import com.alienpoop.poopmcpclient.service.OllamaNodePool.Node;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+/**
+ * {@link ChatModel} that spreads chat requests over the {@link OllamaNodePool}.
+ *
+ * <p>Calls made through {@link #withAffinity} stick to one node per key while that node is not
+ * overloaded. The latency sample for a stream is its time to first response, which does not depend
+ * on the reply length the way the total time does. Blocking calls only return the whole reply, so
+ * they feed no latency sample and cannot skew the node's chat latency against streams.
+ */
+@Component
+@Primary
+public class RoutingChatModel implements ChatModel {
+
+  @Autowired private OllamaNodePool pool;
+
+  @Override
+  public ChatResponse call(Prompt prompt) {
+    return call(prompt, null);
+  }
+
+  @Override
+  public Flux<ChatResponse> stream(Prompt prompt) {
+    return stream(prompt, null);
+  }
+
+  @Override
+  public ChatOptions getDefaultOptions() {
+    return pool.getNodes().get(0).chat().getDefaultOptions();
+  }
+
+  /** A view of this model that routes every request by {@code affinityKey}, if not null. */
+  public ChatModel withAffinity(String affinityKey) {
+    return new ChatModel() {
+      @Override
+      public ChatResponse call(Prompt prompt) {
+        return RoutingChatModel.this.call(prompt, affinityKey);
+      }
+
+      @Override
+      public Flux<ChatResponse> stream(Prompt prompt) {
+        return RoutingChatModel.this.stream(prompt, affinityKey);
+      }
+
+      @Override
+      public ChatOptions getDefaultOptions() {
+        return RoutingChatModel.this.getDefaultOptions();
+      }
+    };
+  }
+
+  private ChatResponse call(Prompt prompt, String affinityKey) {
+    Node node = pool.acquire(affinityKey);
+    ChatResponse response;
+    try {
+      response = node.chat().call(prompt);
+    } catch (RuntimeException e) {
+      pool.release(node, Kind.CHAT, -1, e);
+      throw e;
+    }
+    // 整段生成耗时与流式的首包耗时不可比，不计入延迟样本
+    pool.release(node, Kind.CHAT, -1, null);
+    return response;
+  }
+
+  private Flux<ChatResponse> stream(Prompt prompt, String affinityKey) {
+    return Flux.defer(
+        () -> {
+          Node node = pool.acquire(affinityKey);
+          long start = System.nanoTime();
+          AtomicLong firstResponseNanos = new AtomicLong(-1);
+          AtomicReference<Throwable> error = new AtomicReference<>();
+          return node.chat()
+              .stream(prompt)
+              .doOnNext(
+                  response -> firstResponseNanos.compareAndSet(-1, System.nanoTime() - start))
+              .doOnError(error::set)
+              .doFinally(
+                  signal -> {
+                    long first = firstResponseNanos.get();
+                    pool.release(node, Kind.CHAT, first < 0 ? -1 : first / 1e6, error.get());
+                  });
+        });
+  }
+}
@@ -0,0 +1,42 @@
+package com.alienpoop.poopmcpclient.service;
+
+import com.alienpoop.poopmcpclient.service.OllamaNodePool.Kind;
+import com.alienpoop.poopmcpclient.service.OllamaNodePool.Node;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@link EmbeddingModel} that sends each batch to the least loaded node of the {@link
+ * OllamaNodePool}. It sits behind {@link CachingEmbeddingModel}, so only cache misses get here.
+ */
+@Component
+public class RoutingEmbeddingModel implements EmbeddingModel {
+
+  @Autowired private OllamaNodePool pool;
+
+  @Override
+  public EmbeddingResponse call(EmbeddingRequest request) {
+    Node node = pool.acquire(null);
+    long start = System.nanoTime();
+    EmbeddingResponse response;
+    try {
+      response = node.embedding().call(request);
+    } catch (RuntimeException e) {
+      pool.release(node, Kind.EMBEDDING, -1, e);
+      throw e;
+    }
+    // 按单条输入计算延迟，批大小不同的请求之间才可比较
+    int inputs = Math.max(1, request.getInstructions().size());
+    pool.release(node, Kind.EMBEDDING, (System.nanoTime() - start) / 1e6 / inputs, null);
+    return response;
+  }
+
+  @Override
+  public float[] embed(Document document) {
+    return embed(document.getText());
+  }
+}
@@ -0,0 +1,142 @@
+package com.alienpoop.poopmcpclient.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Duration;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+/**
+ * Encodes the {@code message}, {@code metadata} and {@code error} events of the chat stream.
+ *
+ * <p>Event payloads are escaped straight into a per-thread buffer instead of going through a map
+ * and the ObjectMapper, and model deltas are coalesced into frames of up to {@code max-tokens}
+ * deltas or one {@code window}, whichever fills first. The first delta is always sent on its own
+ * so coalescing never delays the first token.
+ */
+@Component
+@Slf4j
+public class SseFrameEncoder {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  // 超过该容量的缓冲区不再复用，避免偶发的长回复长期占用内存
+  private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+  private static final ThreadLocal<StringBuilder> BUFFER =
+      ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+  @Autowired private ObjectMapper objectMapper;
+
+  @Value("${inference.sse.coalesce.max-tokens:16}")
+  private int maxTokens;
+
+  @Value("${inference.sse.coalesce.window:50ms}")
+  private Duration window;
+
+  /** Turns a flux of model deltas into coalesced {@code message} events. */
+  public Flux<ServerSentEvent<String>> encodeMessages(Flux<String> deltas) {
+    if (maxTokens <= 1) {
+      return deltas.map(this::message);
+    }
+    return deltas.switchOnFirst(
+        (first, flux) -> {
+          if (!first.hasValue()) {
+            return flux.map(this::message);
+          }
+          return Flux.just(message(first.get()))
+              .concatWith(flux.skip(1).bufferTimeout(maxTokens, window).map(this::message));
+        });
+  }
+
+  public ServerSentEvent<String> message(CharSequence content) {
+    StringBuilder buffer = acquire();
+    buffer.append("{\"content\":\"");
+    escape(content, buffer);
+    buffer.append("\"}");
+    return build("message", buffer);
+  }
+
+  public ServerSentEvent<String> message(List<String> contents) {
+    StringBuilder buffer = acquire();
+    buffer.append("{\"content\":\"");
+    for (String content : contents) {
+      escape(content, buffer);
+    }
+    buffer.append("\"}");
+    return build("message", buffer);
+  }
+
+  /**
+   * Builds the final {@code metadata} event. The usage object is the only part that still goes
+   * through the ObjectMapper, once per reply.
+   */
+  public ServerSentEvent<String> metadata(Object usage, Long ttftMillis) {
+    String usageJson;
+    try {
+      usageJson =
+          usage != null ? objectMapper.writeValueAsString(usage) : "\"No metadata available\"";
+    } catch (JsonProcessingException e) {
+      log.error("JSON serialization error for metadata: {}", e.getMessage(), e);
+      return error("Metadata serialization error");
+    }
+    StringBuilder buffer = acquire();
+    buffer.append("{\"metadata\":").append(usageJson);
+    if (ttftMillis != null) {
+      buffer.append(",\"ttftMs\":").append(ttftMillis.longValue());
+    }
+    buffer.append('}');
+    return build("metadata", buffer);
+  }
+
+  public ServerSentEvent<String> error(String message) {
+    StringBuilder buffer = acquire();
+    buffer.append("{\"error\":\"");
+    escape(message != null ? message : "Unknown error", buffer);
+    buffer.append("\"}");
+    return build("error", buffer);
+  }
+
+  private static StringBuilder acquire() {
+    StringBuilder buffer = BUFFER.get();
+    if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+      buffer = new StringBuilder(256);
+      BUFFER.set(buffer);
+    }
+    buffer.setLength(0);
+    return buffer;
+  }
+
+  private static ServerSentEvent<String> build(String event, StringBuilder buffer) {
+    String json = buffer.toString();
+    log.debug("Sending {} event: {}", event, json);
+    return ServerSentEvent.builder(json).event(event).build();
+  }
+
+  static void escape(CharSequence text, StringBuilder out) {
+    for (int i = 0, n = text.length(); i < n; i++) {
+      char ch = text.charAt(i);
+      switch (ch) {
+        case '"' -> out.append("\\\"");
+        case '\\' -> out.append("\\\\");
+        case '\n' -> out.append("\\n");
+        case '\r' -> out.append("\\r");
+        case '\t' -> out.append("\\t");
+        case '\b' -> out.append("\\b");
+        case '\f' -> out.append("\\f");
+        default -> {
+          if (ch < 0x20) {
+            out.append("\\u00").append(HEX[ch >> 4]).append(HEX[ch & 0xF]);
+          } else {
+            out.append(ch);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package com.alienpoop.poopmcpclient.service;
+
+import cn.hutool.core.util.StrUtil;
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+/**
+ * Token splitter that chunks a document while Tika is still extracting it, instead of
+ * materializing the whole text and every chunk first.
+ *
+ * <p>Chunks are cut the way {@code TokenTextSplitter} cuts them: {@code chunkSize} cl100k tokens,
+ * shortened to the last sentence or line end past {@code minChunkSizeChars}. Only a window of
+ * extracted text a few chunks long is held at a time. The parser runs on its own thread and emits
+ * a chunk only when downstream has requested one, so it pauses while embedding and indexing
+ * catch up, and stops when the subscription is cancelled.
+ */
+final class StreamingDocumentSplitter {
+
+  private static final Encoding ENCODING =
+      Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+  private final int chunkSize;
+  private final int minChunkSizeChars;
+  private final int minChunkLengthToEmbed;
+  private final int maxNumChunks;
+  private final int windowChars;
+
+  StreamingDocumentSplitter(
+      int chunkSize, int minChunkSizeChars, int minChunkLengthToEmbed, int maxNumChunks) {
+    this.chunkSize = chunkSize;
+    this.minChunkSizeChars = minChunkSizeChars;
+    this.minChunkLengthToEmbed = minChunkLengthToEmbed;
+    this.maxNumChunks = maxNumChunks;
+    // 一个 token 极少超过 16 个字符，窗口内足以切出一个完整 chunk
+    this.windowChars = chunkSize * 16;
+  }
+
+  /** Parses {@code file} on {@code executor} and emits its chunk texts as downstream requests. */
+  Flux<String> split(Path file, Executor executor) {
+    return Flux.create(
+        sink -> {
+          Demand demand = new Demand();
+          sink.onRequest(demand::add);
+          sink.onDispose(() -> demand.cancelled = true);
+          executor.execute(() -> parse(file, sink, demand));
+        },
+        FluxSink.OverflowStrategy.BUFFER);
+  }
+
+  private void parse(Path file, FluxSink<String> sink, Demand demand) {
+    ChunkingHandler handler =
+        new ChunkingHandler(
+            text -> {
+              demand.take();
+              sink.next(text);
+            });
+    try (InputStream in = Files.newInputStream(file)) {
+      new AutoDetectParser()
+          .parse(in, new BodyContentHandler(handler), new Metadata(), new ParseContext());
+      handler.flush();
+      sink.complete();
+    } catch (Exception e) {
+      if (handler.stopped || demand.cancelled) {
+        sink.complete();
+      } else {
+        sink.error(e);
+      }
+    }
+  }
+
+  /** Outstanding downstream requests; the parser thread waits on it before each chunk. */
+  private static final class Demand {
+    private final Semaphore permits = new Semaphore(0);
+    private volatile boolean unbounded;
+    private volatile boolean cancelled;
+
+    private void add(long n) {
+      if (n >= Integer.MAX_VALUE / 2) {
+        unbounded = true;
+      } else {
+        permits.release((int) n);
+      }
+    }
+
+    private void take() throws SAXException {
+      try {
+        while (!unbounded && !permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+          if (cancelled) {
+            throw new Stopped();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new Stopped();
+      }
+      if (cancelled) {
+        throw new Stopped();
+      }
+    }
+  }
+
+  private interface ChunkSink {
+    void accept(String text) throws SAXException;
+  }
+
+  /** Thrown from the content handler to end parsing early. */
+  private static final class Stopped extends SAXException {}
+
+  private final class ChunkingHandler extends DefaultHandler {
+
+    private final ChunkSink chunks;
+    private final StringBuilder buffer = new StringBuilder();
+    private int emitted;
+    private volatile boolean stopped;
+
+    private ChunkingHandler(ChunkSink chunks) {
+      this.chunks = chunks;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+      buffer.append(ch, start, length);
+      while (buffer.length() >= windowChars) {
+        cut();
+      }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+      characters(ch, start, length);
+    }
+
+    /** Cuts the rest of the buffer once the parser is done. */
+    private void flush() throws SAXException {
+      while (!StrUtil.isBlank(buffer)) {
+        cut();
+      }
+      buffer.setLength(0);
+    }
+
+    /** Cuts one chunk off the front of the buffer. */
+    private void cut() throws SAXException {
+      String window = buffer.substring(0, Math.min(buffer.length(), windowChars));
+      IntArrayList tokens = ENCODING.encode(window);
+      IntArrayList head = new IntArrayList(chunkSize);
+      for (int i = 0; i < Math.min(chunkSize, tokens.size()); i++) {
+        head.add(tokens.get(i));
+      }
+      String text = ENCODING.decode(head);
+
+      int end =
+          Math.max(
+              Math.max(text.lastIndexOf('.'), text.lastIndexOf('?')),
+              Math.max(text.lastIndexOf('!'), text.lastIndexOf('\n')));
+      if (end != -1 && end > minChunkSizeChars) {
+        text = text.substring(0, end + 1);
+      }
+
+      // 截断的 token 可能拆开一个多字节字符，以与原文相同的前缀为准
+      int consumed = commonPrefix(text, window);
+      if (consumed == 0) {
+        consumed = window.length();
+      }
+      String chunk = buffer.substring(0, consumed).trim();
+      buffer.delete(0, consumed);
+
+      if (chunk.length() > minChunkLengthToEmbed) {
+        if (emitted >= maxNumChunks) {
+          stopped = true;
+          throw new Stopped();
+        }
+        emitted++;
+        try {
+          chunks.accept(chunk);
+        } catch (Stopped e) {
+          stopped = true;
+          throw e;
+        }
+      }
+    }
+  }
+
+  private static int commonPrefix(String a, String b) {
+    int n = Math.min(a.length(), b.length());
+    int i = 0;
+    while (i < n && a.charAt(i) == b.charAt(i)) {
+      i++;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,120 @@
+package com.alienpoop.poopmcpclient.service;
+
+import cn.hutool.core.util.StrUtil;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-process cache for the HyperAGI {@code SYSTEM_PROMPT_TEMPLATE} dictionary entry.
+ *
+ * <p>Entries live for {@code ttl}; once an entry is within {@code refresh-ahead} of expiring, the
+ * next caller triggers a background refresh and keeps getting the current template. Concurrent
+ * misses share one fetch, and a failed refresh keeps serving the last good template. A template is
+ * only recompiled when its text changes.
+ */
+@Component
+@Slf4j
+public class SystemPromptTemplateService {
+
+  @Autowired private HyperAgiClient hyperAgiClient;
+
+  @Value("${hyperAGI.system-prompt.ttl:10m}")
+  private Duration ttl;
+
+  @Value("${hyperAGI.system-prompt.refresh-ahead:2m}")
+  private Duration refreshAhead;
+
+  private final AtomicReference<Entry> current = new AtomicReference<>();
+  private final AtomicReference<CompletableFuture<Entry>> inFlight = new AtomicReference<>();
+
+  private record Entry(CompiledPromptTemplate template, long loadedAtNanos) {}
+
+  public CompiledPromptTemplate getTemplate() {
+    Entry entry = current.get();
+    if (entry == null) {
+      return await(refresh()).template();
+    }
+
+    long age = System.nanoTime() - entry.loadedAtNanos();
+    if (age >= ttl.toNanos()) {
+      try {
+        return await(refresh()).template();
+      } catch (RuntimeException e) {
+        log.warn("System prompt template refresh failed, serving stale value: {}", e.getMessage());
+        return entry.template();
+      }
+    }
+    if (age >= ttl.minus(refreshAhead).toNanos()) {
+      refresh();
+    }
+    return entry.template();
+  }
+
+  /** Returns the last successfully loaded template regardless of its age, or null. */
+  public CompiledPromptTemplate getLastKnown() {
+    Entry entry = current.get();
+    return entry != null ? entry.template() : null;
+  }
+
+  /** Starts a fetch unless one is already running, and returns the shared future. */
+  private CompletableFuture<Entry> refresh() {
+    while (true) {
+      CompletableFuture<Entry> running = inFlight.get();
+      if (running != null) {
+        return running;
+      }
+      CompletableFuture<Entry> future = new CompletableFuture<>();
+      if (!inFlight.compareAndSet(null, future)) {
+        continue;
+      }
+      hyperAgiClient
+          .getDictText("sys_config", "SYSTEM_PROMPT_TEMPLATE")
+          .defaultIfEmpty("")
+          .map(this::load)
+          .subscribe(
+              future::complete,
+              error -> {
+                log.error("Error fetching system prompt template: {}", error.getMessage());
+                inFlight.compareAndSet(future, null);
+                future.completeExceptionally(error);
+              },
+              () -> inFlight.compareAndSet(future, null));
+      return future;
+    }
+  }
+
+  private Entry load(String text) {
+    if (StrUtil.isBlank(text)) {
+      throw new IllegalStateException("SYSTEM_PROMPT_TEMPLATE is empty");
+    }
+
+    Entry previous = current.get();
+    CompiledPromptTemplate template =
+        previous != null && previous.template().getTemplate().equals(text)
+            ? previous.template()
+            : CompiledPromptTemplate.compile(text);
+    if (previous == null || template != previous.template()) {
+      log.info("Compiled system prompt template, placeholders: {}", template.getPlaceholders());
+    }
+
+    Entry entry = new Entry(template, System.nanoTime());
+    current.set(entry);
+    return entry;
+  }
+
+  private static Entry await(CompletableFuture<Entry> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException re
+          ? re
+          : new IllegalStateException(e.getCause());
+    }
+  }
+}
@@ -1,47 +1,650 @@
 package com.alienpoop.poopmcpclient.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.modelcontextprotocol.client.McpAsyncClient;
+import io.modelcontextprotocol.client.McpClient;
+import io.modelcontextprotocol.client.transport.WebFluxSseClientTransport;
+import io.modelcontextprotocol.spec.McpSchema;
 import jakarta.annotation.PostConstruct;
-import java.util.Arrays;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.mcp.McpToolUtils;
+import org.springframework.ai.mcp.client.autoconfigure.properties.McpClientCommonProperties;
+import org.springframework.ai.mcp.client.autoconfigure.properties.McpSseClientProperties;
+import org.springframework.ai.model.ModelOptionsUtils;
 import org.springframework.ai.tool.ToolCallback;
 import org.springframework.ai.tool.ToolCallbackProvider;
+import org.springframework.ai.tool.definition.DefaultToolDefinition;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.execution.ToolExecutionException;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 /**
- * Component responsible for periodically checking the health of the ToolCallbackProvider by
- * invoking getToolCallbacks(). If an error occurs, it triggers an application shutdown.
+ * Live catalog of the tools offered by the MCP servers in {@code spring.ai.mcp.client.sse}.
+ *
+ * <p>The tools are published as an immutable {@link Snapshot} whose version changes only when the
+ * tool set does; a refresh swaps it atomically and requests keep the snapshot they started with.
+ * The tool list is reloaded after each (re)connect, on the server's {@code tools/list_changed}
+ * notification and every {@code refresh-interval} for servers that do not send it. In between,
+ * each server only gets an MCP {@code ping} every {@code probe-interval-ms}. A failed probe closes
+ * the client and reconnects with exponential backoff; the tools stay in the catalog meanwhile and
+ * calls go to the new client once it is up.
+ *
+ * <p>Every connection is one MCP server and its tools are merged into the catalog in configuration
+ * order. A call is routed to the server that listed the tool and guarded per server: at most {@code
+ * max-concurrent} calls run at once, and after {@code failure-threshold} failed calls in a row the
+ * circuit opens and calls fail fast for {@code open-duration}, then one trial call decides whether
+ * it closes again. Limits come from {@code mcp.servers.<name>.*}, falling back to {@code
+ * mcp.server-defaults.*}, so a slow server cannot tie up the tool calls of the others.
  */
 @Component
 @Slf4j
-public class ToolCallbackService {
+public class ToolCallbackService implements ToolCallbackProvider, MetricsSource {
 
-  @Autowired private ToolCallbackProvider toolCallbackProvider;
+  @Autowired private McpClientCommonProperties commonProperties;
+  @Autowired private McpSseClientProperties sseProperties;
+  @Autowired private ObjectProvider<WebClient.Builder> webClientBuilder;
+  @Autowired private ObjectProvider<ObjectMapper> objectMapper;
+  @Autowired private ToolResultCache toolResultCache;
+  @Autowired private Environment environment;
 
-  private List<ToolCallback> functionCallbackList;
+  // prefixed：工具名带客户端和服务器前缀，与自动配置一致；plain：直接用 MCP 工具名，重名时才加前缀
+  @Value("${mcp.catalog.tool-names:prefixed}")
+  private String toolNames;
 
-  public List<ToolCallback> getFunctionCallbackList() {
-    if (functionCallbackList == null) {
-      functionCallbackList = Arrays.asList(toolCallbackProvider.getToolCallbacks());
+  @Value("${mcp.catalog.connect-timeout:20s}")
+  private Duration connectTimeout;
+
+  @Value("${mcp.catalog.probe-timeout:5s}")
+  private Duration probeTimeout;
+
+  @Value("${mcp.catalog.refresh-interval:10m}")
+  private Duration refreshInterval;
+
+  @Value("${mcp.catalog.reconnect.initial-backoff:1s}")
+  private Duration initialBackoff;
+
+  @Value("${mcp.catalog.reconnect.max-backoff:60s}")
+  private Duration maxBackoff;
+
+  @Value("${mcp.server-defaults.max-concurrent:8}")
+  private int defaultMaxConcurrent;
+
+  @Value("${mcp.server-defaults.acquire-timeout:5s}")
+  private Duration defaultAcquireTimeout;
+
+  @Value("${mcp.server-defaults.failure-threshold:5}")
+  private int defaultFailureThreshold;
+
+  @Value("${mcp.server-defaults.open-duration:30s}")
+  private Duration defaultOpenDuration;
+
+  private final List<Connection> connections = new ArrayList<>();
+  private final AtomicReference<Snapshot> snapshot =
+      new AtomicReference<>(new Snapshot(0, List.of(), Instant.now()));
+  private final LongAdder refreshes = new LongAdder();
+  private volatile List<String> conflicts = List.of();
+  // plain 模式下不带前缀的工具名归属哪个服务器；只在该服务器最近一次的工具列表不再包含它时才释放
+  private final Map<String, Connection> plainOwners = new HashMap<>();
+  private volatile boolean started;
+
+  /** The tool set at one point in time; never modified after it is published. */
+  public record Snapshot(long version, List<ToolCallback> tools, Instant loadedAt) {}
+
+  private enum CircuitState {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final class Connection {
+    private final String name;
+    private final McpSseClientProperties.SseParameters parameters;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final Duration acquireTimeout;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder probeFailures = new LongAdder();
+    private volatile McpAsyncClient client;
+    private volatile boolean connected;
+    private volatile List<McpSchema.Tool> tools = List.of();
+    private volatile long refreshedAtNanos;
+    private volatile String lastError;
+    // 连续失败次数，决定下一次重连的退避时长
+    private int attempts;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder callFailures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shortCircuited = new LongAdder();
+    private CircuitState circuit = CircuitState.CLOSED;
+    private int consecutiveCallFailures;
+    private long openedAtNanos;
+    private boolean trialInFlight;
+    private double latencyMs = -1;
+
+    private Connection(String name, McpSseClientProperties.SseParameters parameters) {
+      this.name = name;
+      this.parameters = parameters;
+      this.maxConcurrent =
+          serverProperty(name, "max-concurrent", Integer.class, defaultMaxConcurrent);
+      this.permits = new Semaphore(maxConcurrent);
+      this.acquireTimeout =
+          serverProperty(name, "acquire-timeout", Duration.class, defaultAcquireTimeout);
+      this.failureThreshold =
+          serverProperty(name, "failure-threshold", Integer.class, defaultFailureThreshold);
+      this.openDuration =
+          serverProperty(name, "open-duration", Duration.class, defaultOpenDuration);
+    }
+
+    /** Whether the circuit lets a call through; in half-open state only one trial call. */
+    private synchronized boolean allowCall() {
+      if (circuit == CircuitState.OPEN
+          && System.nanoTime() - openedAtNanos >= openDuration.toNanos()) {
+        circuit = CircuitState.HALF_OPEN;
+        trialInFlight = false;
+      }
+      if (circuit == CircuitState.CLOSED) {
+        return true;
+      }
+      if (circuit == CircuitState.HALF_OPEN && !trialInFlight) {
+        trialInFlight = true;
+        return true;
+      }
+      return false;
+    }
+
+    /** Gives up a trial call that never reached the server. */
+    private synchronized void abandonTrial() {
+      trialInFlight = false;
+    }
+
+    private synchronized void callSucceeded(double sampleMs) {
+      latencyMs = latencyMs < 0 ? sampleMs : latencyMs * 0.8 + sampleMs * 0.2;
+      consecutiveCallFailures = 0;
+      trialInFlight = false;
+      if (circuit != CircuitState.CLOSED) {
+        circuit = CircuitState.CLOSED;
+        log.info("Circuit of MCP server {} closed", name);
+      }
+    }
+
+    private synchronized void callFailed(Throwable error) {
+      callFailures.increment();
+      trialInFlight = false;
+      if (circuit == CircuitState.HALF_OPEN
+          || (circuit == CircuitState.CLOSED && ++consecutiveCallFailures >= failureThreshold)) {
+        circuit = CircuitState.OPEN;
+        openedAtNanos = System.nanoTime();
+        consecutiveCallFailures = 0;
+        log.warn(
+            "Circuit of MCP server {} opened for {}: {}", name, openDuration, error.getMessage());
+      }
     }
-    return functionCallbackList;
   }
 
-  @Scheduled(cron = "0 * * * * ?")
+  private <T> T serverProperty(String server, String key, Class<T> type, T fallback) {
+    return environment.getProperty("mcp.servers." + server + "." + key, type, fallback);
+  }
+
   @PostConstruct
-  public void ping() {
+  public void init() {
+    if (!commonProperties.isEnabled() || !commonProperties.getToolcallback().isEnabled()) {
+      log.info("MCP tool catalog disabled");
+      return;
+    }
+    sseProperties
+        .getConnections()
+        .forEach((name, params) -> connections.add(new Connection(name, params)));
+    try {
+      // 启动时最多等待 connect-timeout，拿不到工具也照常启动，之后在后台重连
+      Flux.fromIterable(connections)
+          .flatMap(this::connect)
+          .then()
+          .block(connectTimeout.plusSeconds(1));
+    } catch (RuntimeException e) {
+      log.warn("MCP tool catalog not ready at startup: {}", e.getMessage());
+    }
+    // 启动期间按配置顺序统一发布，不按服务器响应的先后分配工具名
+    started = true;
+    publish();
+  }
+
+  @PreDestroy
+  public void close() {
+    for (Connection connection : connections) {
+      connection.connected = false;
+      closeQuietly(connection.client);
+    }
+  }
+
+  public Snapshot getSnapshot() {
+    return snapshot.get();
+  }
+
+  public List<ToolCallback> getFunctionCallbackList() {
+    return snapshot.get().tools();
+  }
+
+  @Override
+  public ToolCallback[] getToolCallbacks() {
+    return getFunctionCallbackList().toArray(new ToolCallback[0]);
+  }
+
+  private Mono<Void> connect(Connection connection) {
+    return Mono.defer(
+        () -> {
+          if (!connection.connecting.compareAndSet(false, true)) {
+            return Mono.empty();
+          }
+          McpAsyncClient client;
+          try {
+            client = newClient(connection);
+          } catch (RuntimeException e) {
+            connection.connecting.set(false);
+            failed(connection, e);
+            return Mono.empty();
+          }
+          return client
+              .initialize()
+              .then(listTools(client))
+              .timeout(connectTimeout)
+              .doOnNext(
+                  tools -> {
+                    McpAsyncClient previous = connection.client;
+                    connection.client = client;
+                    connection.connected = true;
+                    connection.connects.increment();
+                    synchronized (connection) {
+                      connection.attempts = 0;
+                    }
+                    connection.lastError = null;
+                    connection.connecting.set(false);
+                    if (previous != null && previous != client) {
+                      closeQuietly(previous);
+                    }
+                    log.info("MCP server {} connected, {} tools", connection.name, tools.size());
+                    apply(connection, tools);
+                  })
+              .doOnError(
+                  e -> {
+                    closeQuietly(client);
+                    connection.connecting.set(false);
+                    failed(connection, e);
+                  })
+              .onErrorResume(e -> Mono.empty())
+              .then();
+        });
+  }
+
+  private McpAsyncClient newClient(Connection connection) {
+    WebClient.Builder builder =
+        webClientBuilder
+            .getIfAvailable(WebClient::builder)
+            .clone()
+            .baseUrl(connection.parameters.url());
+    WebFluxSseClientTransport.Builder transport =
+        WebFluxSseClientTransport.builder(builder)
+            .objectMapper(objectMapper.getIfAvailable(ObjectMapper::new));
+    if (connection.parameters.sseEndpoint() != null) {
+      transport.sseEndpoint(connection.parameters.sseEndpoint());
+    }
+    return McpClient.async(transport.build())
+        .clientInfo(
+            new McpSchema.Implementation(clientName(connection), commonProperties.getVersion()))
+        .requestTimeout(commonProperties.getRequestTimeout())
+        .initializationTimeout(connectTimeout)
+        .toolsChangeConsumer(
+            tools -> {
+              log.info("MCP server {} reported a tool list change", connection.name);
+              refresh(connection);
+              return Mono.empty();
+            })
+        .build();
+  }
+
+  // 与自动配置相同的 clientInfo 名称，工具名前缀保持不变
+  private String clientName(Connection connection) {
+    return commonProperties.getName() + " - " + connection.name;
+  }
 
+  private static Mono<List<McpSchema.Tool>> listTools(McpAsyncClient client) {
+    return client
+        .listTools(null)
+        .expand(
+            page ->
+                page.nextCursor() != null ? client.listTools(page.nextCursor()) : Mono.empty())
+        .flatMapIterable(McpSchema.ListToolsResult::tools)
+        .collectList();
+  }
+
+  private void refresh(Connection connection) {
+    McpAsyncClient client = connection.client;
+    if (client == null || !connection.connected) {
+      return;
+    }
+    listTools(client)
+        .timeout(probeTimeout.plus(connectTimeout))
+        .subscribe(
+            tools -> apply(connection, tools),
+            e ->
+                log.warn(
+                    "Failed to list tools of MCP server {}: {}", connection.name, e.getMessage()));
+  }
+
+  private void apply(Connection connection, List<McpSchema.Tool> tools) {
+    connection.tools = List.copyOf(tools);
+    connection.refreshedAtNanos = System.nanoTime();
+    refreshes.increment();
+    publish();
+  }
+
+  /** Builds the next snapshot from every connection; the version moves only if a tool changed. */
+  private synchronized void publish() {
+    if (!started) {
+      return;
+    }
+    List<ToolCallback> tools = new ArrayList<>();
+    Set<String> names = new HashSet<>();
+    List<String> skipped = new ArrayList<>();
+    boolean plain = "plain".equalsIgnoreCase(toolNames);
+    if (plain) {
+      assignPlainNames();
+    }
+    for (Connection connection : connections) {
+      String prefix = clientName(connection);
+      for (McpSchema.Tool tool : connection.tools) {
+        String prefixed = McpToolUtils.prefixedToolName(prefix, tool.name());
+        String name = plain && plainOwners.get(tool.name()) == connection ? tool.name() : prefixed;
+        if (!names.add(name)) {
+          // 前面的服务器优先，后面同名的工具不进入目录
+          skipped.add(connection.name + ":" + tool.name());
+          continue;
+        }
+        ToolDefinition definition =
+            DefaultToolDefinition.builder()
+                .name(name)
+                .description(tool.description())
+                .inputSchema(ModelOptionsUtils.toJsonString(tool.inputSchema()))
+                .build();
+        tools.add(
+            toolResultCache.decorate(
+                new CatalogToolCallback(connection, tool, definition), tool.name()));
+      }
+    }
+    if (!skipped.equals(conflicts)) {
+      if (!skipped.isEmpty()) {
+        log.warn("MCP tools skipped because of a name conflict: {}", skipped);
+      }
+      conflicts = List.copyOf(skipped);
+    }
+    Snapshot current = snapshot.get();
+    if (sameDefinitions(current.tools(), tools)) {
+      return;
+    }
+    Snapshot next = new Snapshot(current.version() + 1, List.copyOf(tools), Instant.now());
+    snapshot.set(next);
+    log.info(
+        "MCP tool catalog v{}: {}",
+        next.version(),
+        tools.stream().map(tool -> tool.getToolDefinition().name()).toList());
+  }
+
+  /**
+   * Keeps each bare tool name with the server that holds it. A connection's tool list is its last
+   * known one and is kept while the server is down, so a name is released only when its owner lists
+   * tools without it; free names go to the first server in configuration order that lists them.
+   */
+  private void assignPlainNames() {
+    plainOwners
+        .entrySet()
+        .removeIf(
+            owner ->
+                owner.getValue().tools.stream()
+                    .noneMatch(tool -> tool.name().equals(owner.getKey())));
+    for (Connection connection : connections) {
+      for (McpSchema.Tool tool : connection.tools) {
+        plainOwners.putIfAbsent(tool.name(), connection);
+      }
+    }
+  }
+
+  private static boolean sameDefinitions(List<ToolCallback> a, List<ToolCallback> b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+    for (int i = 0; i < a.size(); i++) {
+      ToolDefinition left = a.get(i).getToolDefinition();
+      ToolDefinition right = b.get(i).getToolDefinition();
+      if (!left.name().equals(right.name())
+          || !Objects.equals(left.description(), right.description())
+          || !Objects.equals(left.inputSchema(), right.inputSchema())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void failed(Connection connection, Throwable error) {
+    connection.connected = false;
+    connection.failures.increment();
+    connection.lastError = error.getMessage();
+    long backoffMs;
+    synchronized (connection) {
+      int attempts = Math.min(connection.attempts++, 16);
+      backoffMs = Math.min(maxBackoff.toMillis(), initialBackoff.toMillis() << attempts);
+    }
+    // 加 20% 抖动，避免多个实例同时重连
+    backoffMs += (long) (backoffMs * 0.2 * ThreadLocalRandom.current().nextDouble());
+    log.warn(
+        "MCP server {} unavailable ({}), reconnecting in {} ms",
+        connection.name,
+        error.getMessage(),
+        backoffMs);
+    Mono.delay(Duration.ofMillis(backoffMs)).then(connect(connection)).subscribe();
+  }
+
+  /** Pings every connected server; tool lists are reloaded only when due. */
+  @Scheduled(fixedDelayString = "${mcp.catalog.probe-interval-ms:15000}")
+  public void probe() {
+    for (Connection connection : connections) {
+      McpAsyncClient client = connection.client;
+      if (client == null
+          || !connection.connected
+          || !connection.probing.compareAndSet(false, true)) {
+        continue;
+      }
+      client
+          .ping()
+          .timeout(probeTimeout)
+          .doFinally(signal -> connection.probing.set(false))
+          .subscribe(
+              pong -> {
+                long sinceRefresh = System.nanoTime() - connection.refreshedAtNanos;
+                if (!sendsListChanged(client) && sinceRefresh >= refreshInterval.toNanos()) {
+                  refresh(connection);
+                }
+              },
+              e -> {
+                connection.probeFailures.increment();
+                if (connection.client == client && connection.connected) {
+                  connection.connected = false;
+                  closeQuietly(client);
+                  failed(connection, e);
+                }
+              });
+    }
+  }
+
+  private static boolean sendsListChanged(McpAsyncClient client) {
+    McpSchema.ServerCapabilities capabilities = client.getServerCapabilities();
+    return capabilities != null
+        && capabilities.tools() != null
+        && Boolean.TRUE.equals(capabilities.tools().listChanged());
+  }
+
+  private static void closeQuietly(McpAsyncClient client) {
+    if (client == null) {
+      return;
+    }
     try {
+      client.close();
+    } catch (RuntimeException e) {
+      log.debug("Failed to close MCP client: {}", e.getMessage());
+    }
+  }
+
+  /** A catalog tool; calls go to the connection's current client, so they survive a reconnect. */
+  private static final class CatalogToolCallback implements ToolCallback {
+    private final Connection connection;
+    private final McpSchema.Tool tool;
+    private final ToolDefinition definition;
 
-      log.info("Pinging ToolCallbackProvider...");
+    private CatalogToolCallback(
+        Connection connection, McpSchema.Tool tool, ToolDefinition definition) {
+      this.connection = connection;
+      this.tool = tool;
+      this.definition = definition;
+    }
+
+    @Override
+    public ToolDefinition getToolDefinition() {
+      return definition;
+    }
 
-      toolCallbackProvider.getToolCallbacks();
-    } catch (Exception e) {
+    @Override
+    public String call(String toolInput) {
+      McpAsyncClient client = connection.client;
+      if (client == null || !connection.connected) {
+        throw unavailable("is reconnecting");
+      }
+      if (!connection.allowCall()) {
+        connection.shortCircuited.increment();
+        throw unavailable("is failing, circuit open");
+      }
+      try {
+        if (!connection.permits.tryAcquire(
+            connection.acquireTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+          connection.rejected.increment();
+          connection.abandonTrial();
+          throw unavailable("is busy, " + connection.maxConcurrent + " calls in flight");
+        }
+      } catch (InterruptedException e) {
+        connection.abandonTrial();
+        Thread.currentThread().interrupt();
+        throw new ToolExecutionException(definition, e);
+      }
 
-      log.error("Error while pinging ToolCallbackProvider: ", e);
-      System.exit(500);
+      connection.calls.increment();
+      long start = System.nanoTime();
+      McpSchema.CallToolResult result;
+      try {
+        result =
+            client
+                .callTool(
+                    new McpSchema.CallToolRequest(
+                        tool.name(), ModelOptionsUtils.jsonToMap(toolInput)))
+                .block();
+      } catch (RuntimeException e) {
+        connection.callFailed(e);
+        throw e;
+      } finally {
+        connection.permits.release();
+      }
+      // 工具自身返回的错误说明服务器是正常的，不计入熔断
+      connection.callSucceeded((System.nanoTime() - start) / 1e6);
+      if (result == null) {
+        throw new IllegalStateException("No result from tool " + tool.name());
+      }
+      if (Boolean.TRUE.equals(result.isError())) {
+        throw new IllegalStateException("Error calling tool: " + result.content());
+      }
+      return ModelOptionsUtils.toJsonString(result.content());
     }
+
+    private ToolExecutionException unavailable(String reason) {
+      return new ToolExecutionException(
+          definition, new IllegalStateException("MCP server " + connection.name + " " + reason));
+    }
+
+    @Override
+    public String call(String toolInput, ToolContext toolContext) {
+      return call(toolInput);
+    }
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "toolCatalog";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Snapshot current = snapshot.get();
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("version", current.version());
+    metrics.put("tools", current.tools().size());
+    metrics.put("loadedAt", current.loadedAt().toString());
+    metrics.put("refreshes", refreshes.sum());
+    metrics.put("conflicts", conflicts);
+    Map<String, Object> servers = new LinkedHashMap<>();
+    for (Connection connection : connections) {
+      Map<String, Object> view = new LinkedHashMap<>();
+      view.put("connected", connection.connected);
+      view.put("tools", connection.tools.size());
+      synchronized (connection) {
+        view.put("circuit", connection.circuit.name());
+        view.put("latencyMs", Math.round(connection.latencyMs));
+      }
+      view.put("inFlight", connection.maxConcurrent - connection.permits.availablePermits());
+      view.put("calls", connection.calls.sum());
+      view.put("callFailures", connection.callFailures.sum());
+      view.put("rejected", connection.rejected.sum());
+      view.put("shortCircuited", connection.shortCircuited.sum());
+      view.put("connects", connection.connects.sum());
+      view.put("failures", connection.failures.sum());
+      view.put("probeFailures", connection.probeFailures.sum());
+      if (connection.lastError != null) {
+        view.put("lastError", connection.lastError);
+      }
+      servers.put(connection.name, view);
+    }
+    metrics.put("servers", servers);
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logCatalogMetrics() {
+    log.info("Tool Catalog: {}", getMetrics());
   }
 }
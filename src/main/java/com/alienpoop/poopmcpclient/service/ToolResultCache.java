@@ -0,0 +1,207 @@
+package com.alienpoop.poopmcpclient.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.metadata.ToolMetadata;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Result cache for MCP tools that are safe to call once and reuse, shared by all requests.
+ *
+ * <p>Only the tools listed in {@code mcp.tool-cache.tools} are cached, each as {@code name} (kept
+ * for {@code default-ttl}) or {@code name=ttl}; the name is the tool name on the MCP server or the
+ * prefixed name sent to the model. Results are keyed by the tool and its arguments with object
+ * keys sorted, so the same call with reordered arguments hits. Failed calls are not cached.
+ */
+@Component
+@Slf4j
+public class ToolResultCache implements MetricsSource {
+
+  private static final ObjectMapper CANONICAL =
+      new ObjectMapper().enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+
+  @Value("${mcp.tool-cache.enabled:true}")
+  private boolean enabled;
+
+  @Value("${mcp.tool-cache.max-entries:1000}")
+  private int maxEntries;
+
+  @Value("${mcp.tool-cache.default-ttl:5m}")
+  private Duration defaultTtl;
+
+  @Value("${mcp.tool-cache.tools:}")
+  private List<String> tools;
+
+  private final Map<String, Duration> ttls = new HashMap<>();
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private final Map<String, ToolStats> stats = new ConcurrentHashMap<>();
+
+  private record Key(String tool, String arguments) {}
+
+  private record Entry(String result, long latencyNanos, long expiresAtNanos) {}
+
+  private static final class ToolStats {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder savedNanos = new LongAdder();
+  }
+
+  @PostConstruct
+  public void init() {
+    for (String spec : tools) {
+      String name = spec.trim();
+      if (name.isEmpty()) {
+        continue;
+      }
+      int eq = name.indexOf('=');
+      Duration ttl = defaultTtl;
+      if (eq >= 0) {
+        ttl = DurationStyle.detectAndParse(name.substring(eq + 1).trim());
+        name = name.substring(0, eq).trim();
+      }
+      ttls.put(name, ttl);
+    }
+    if (enabled && !ttls.isEmpty()) {
+      log.info("Caching results of MCP tools {}", ttls);
+    }
+  }
+
+  /**
+   * Wraps {@code callback} with the cache if {@code toolName} or its prefixed name is configured;
+   * returns it unchanged otherwise.
+   */
+  public ToolCallback decorate(ToolCallback callback, String toolName) {
+    if (!enabled) {
+      return callback;
+    }
+    Duration ttl = ttls.get(callback.getToolDefinition().name());
+    if (ttl == null) {
+      ttl = ttls.get(toolName);
+    }
+    if (ttl == null || ttl.isZero() || ttl.isNegative()) {
+      return callback;
+    }
+    return new CachingToolCallback(callback, ttl);
+  }
+
+  private final class CachingToolCallback implements ToolCallback {
+    private final ToolCallback delegate;
+    private final String name;
+    private final long ttlNanos;
+
+    private CachingToolCallback(ToolCallback delegate, Duration ttl) {
+      this.delegate = delegate;
+      this.name = delegate.getToolDefinition().name();
+      this.ttlNanos = ttl.toNanos();
+    }
+
+    @Override
+    public ToolDefinition getToolDefinition() {
+      return delegate.getToolDefinition();
+    }
+
+    @Override
+    public ToolMetadata getToolMetadata() {
+      return delegate.getToolMetadata();
+    }
+
+    @Override
+    public String call(String toolInput) {
+      return call(toolInput, null);
+    }
+
+    @Override
+    public String call(String toolInput, ToolContext toolContext) {
+      Key key = new Key(name, canonicalize(toolInput));
+      ToolStats toolStats = stats.computeIfAbsent(name, tool -> new ToolStats());
+      long now = System.nanoTime();
+      synchronized (entries) {
+        Entry entry = entries.get(key);
+        if (entry != null && now - entry.expiresAtNanos() < 0) {
+          toolStats.hits.increment();
+          toolStats.savedNanos.add(entry.latencyNanos());
+          return entry.result();
+        }
+      }
+
+      toolStats.misses.increment();
+      String result =
+          toolContext != null ? delegate.call(toolInput, toolContext) : delegate.call(toolInput);
+      long end = System.nanoTime();
+      synchronized (entries) {
+        entries.put(key, new Entry(result, end - now, end + ttlNanos));
+        while (entries.size() > maxEntries) {
+          entries.remove(entries.keySet().iterator().next());
+        }
+      }
+      return result;
+    }
+  }
+
+  /** Re-serializes JSON arguments with sorted object keys; other input is only trimmed. */
+  static String canonicalize(String toolInput) {
+    if (toolInput == null || toolInput.isBlank()) {
+      return "{}";
+    }
+    try {
+      return CANONICAL.writeValueAsString(CANONICAL.readValue(toolInput, Object.class));
+    } catch (JsonProcessingException e) {
+      return toolInput.trim();
+    }
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "toolResultCache";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    synchronized (entries) {
+      metrics.put("entries", entries.size());
+    }
+    long hits = 0;
+    long misses = 0;
+    long savedNanos = 0;
+    Map<String, Object> perTool = new LinkedHashMap<>();
+    for (Map.Entry<String, ToolStats> tool : stats.entrySet()) {
+      ToolStats toolStats = tool.getValue();
+      Map<String, Object> view = new LinkedHashMap<>();
+      view.put("hits", toolStats.hits.sum());
+      view.put("misses", toolStats.misses.sum());
+      view.put("savedMs", TimeUnit.NANOSECONDS.toMillis(toolStats.savedNanos.sum()));
+      perTool.put(tool.getKey(), view);
+      hits += toolStats.hits.sum();
+      misses += toolStats.misses.sum();
+      savedNanos += toolStats.savedNanos.sum();
+    }
+    metrics.put("hits", hits);
+    metrics.put("misses", misses);
+    metrics.put("savedMs", TimeUnit.NANOSECONDS.toMillis(savedNanos));
+    metrics.put("tools", perTool);
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logToolResultCacheMetrics() {
+    log.info("Tool Result Cache: {}", getMetrics());
+  }
+}
@@ -0,0 +1,239 @@
+package com.alienpoop.poopmcpclient.service;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Picks the tools sent with a chat request, so the prompt does not carry every tool schema of the
+ * catalog.
+ *
+ * <p>Tools are ranked by the cosine similarity between the request text and the embedding of the
+ * tool name and description, and the best {@code top-n} are sent together with the tools in {@code
+ * always-include}. Tool embeddings are computed once per catalog version, reusing the vectors of
+ * tools whose text did not change. The selected tools keep their catalog order. When the catalog
+ * has no more than {@code top-n} tools, the text is empty or embedding fails, all tools are sent.
+ */
+@Component
+@Slf4j
+public class ToolSelector implements MetricsSource {
+
+  private static final Encoding ENCODING =
+      Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+  @Autowired private ToolCallbackService toolCallbackService;
+  @Autowired private EmbeddingModel embeddingModel;
+
+  @Value("${mcp.tool-selection.enabled:true}")
+  private boolean enabled;
+
+  @Value("${mcp.tool-selection.top-n:8}")
+  private int topN;
+
+  // MCP 工具名或带前缀的工具名，逗号分隔
+  @Value("${mcp.tool-selection.always-include:}")
+  private Set<String> alwaysInclude;
+
+  private volatile Index index = new Index(-1, List.of(), List.of(), new int[0]);
+  // 以工具的嵌入文本为键，目录版本变化时只嵌入新增或改动的工具
+  private final Map<String, float[]> vectors = new ConcurrentHashMap<>();
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder selections = new LongAdder();
+  private final LongAdder fallbacks = new LongAdder();
+  private final LongAdder toolsOffered = new LongAdder();
+  private final LongAdder toolsSent = new LongAdder();
+  private final LongAdder tokensSaved = new LongAdder();
+
+  /** The tools of one catalog version with their embeddings and schema token counts. */
+  private record Index(
+      long version, List<ToolCallback> tools, List<float[]> vectors, int[] tokens) {}
+
+  /** The tools to attach to a request with {@code text}. */
+  public List<ToolCallback> select(String text) {
+    requests.increment();
+    ToolCallbackService.Snapshot snapshot = toolCallbackService.getSnapshot();
+    List<ToolCallback> tools = snapshot.tools();
+    toolsOffered.add(tools.size());
+    if (!enabled || tools.size() <= topN || text == null || text.isBlank()) {
+      toolsSent.add(tools.size());
+      return tools;
+    }
+
+    List<ToolCallback> selected;
+    Index current;
+    try {
+      current = indexOf(snapshot);
+      float[] query = embeddingModel.embed(text);
+      selected = rank(current, query);
+    } catch (RuntimeException e) {
+      log.warn("Tool selection failed, sending all tools: {}", e.getMessage());
+      fallbacks.increment();
+      toolsSent.add(tools.size());
+      return tools;
+    }
+
+    selections.increment();
+    toolsSent.add(selected.size());
+    int saved = 0;
+    for (int i = 0; i < current.tools().size(); i++) {
+      if (!selected.contains(current.tools().get(i))) {
+        saved += current.tokens()[i];
+      }
+    }
+    tokensSaved.add(saved);
+    if (log.isDebugEnabled()) {
+      log.debug(
+          "Selected tools {}, {} schema tokens saved",
+          selected.stream().map(tool -> tool.getToolDefinition().name()).toList(),
+          saved);
+    }
+    return selected;
+  }
+
+  private List<ToolCallback> rank(Index current, float[] query) {
+    List<ToolCallback> tools = current.tools();
+    List<Integer> order = new ArrayList<>(tools.size());
+    double[] scores = new double[tools.size()];
+    for (int i = 0; i < tools.size(); i++) {
+      scores[i] = ContextPacker.cosine(query, current.vectors().get(i));
+      order.add(i);
+    }
+    order.sort(Comparator.comparingDouble(i -> -scores[i]));
+
+    boolean[] keep = new boolean[tools.size()];
+    for (int i = 0; i < Math.min(topN, order.size()); i++) {
+      keep[order.get(i)] = true;
+    }
+    for (int i = 0; i < tools.size(); i++) {
+      if (isAlwaysIncluded(tools.get(i).getToolDefinition().name())) {
+        keep[i] = true;
+      }
+    }
+    List<ToolCallback> selected = new ArrayList<>();
+    for (int i = 0; i < tools.size(); i++) {
+      if (keep[i]) {
+        selected.add(tools.get(i));
+      }
+    }
+    return selected;
+  }
+
+  private boolean isAlwaysIncluded(String name) {
+    if (alwaysInclude.contains(name)) {
+      return true;
+    }
+    // 模型看到的是带服务器前缀的名字，按结尾匹配 MCP 工具名
+    for (String include : alwaysInclude) {
+      if (name.endsWith("_" + include)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Index indexOf(ToolCallbackService.Snapshot snapshot) {
+    Index current = index;
+    if (current.version() == snapshot.version()) {
+      return current;
+    }
+    synchronized (this) {
+      current = index;
+      if (current.version() == snapshot.version()) {
+        return current;
+      }
+      List<ToolCallback> tools = snapshot.tools();
+      List<String> texts = new ArrayList<>(tools.size());
+      List<String> missing = new ArrayList<>();
+      int[] tokens = new int[tools.size()];
+      for (int i = 0; i < tools.size(); i++) {
+        ToolDefinition definition = tools.get(i).getToolDefinition();
+        String text = definition.name() + ": " + definition.description();
+        texts.add(text);
+        if (!vectors.containsKey(text) && !missing.contains(text)) {
+          missing.add(text);
+        }
+        tokens[i] = ENCODING.countTokens(text + "\n" + definition.inputSchema());
+      }
+      if (!missing.isEmpty()) {
+        List<float[]> embedded = embeddingModel.embed(missing);
+        for (int i = 0; i < missing.size(); i++) {
+          vectors.put(missing.get(i), embedded.get(i));
+        }
+      }
+      // 只保留当前目录用到的向量
+      Map<String, float[]> used = new HashMap<>();
+      List<float[]> indexed = new ArrayList<>(tools.size());
+      for (String text : texts) {
+        float[] vector = vectors.get(text);
+        used.put(text, vector);
+        indexed.add(vector);
+      }
+      vectors.keySet().retainAll(used.keySet());
+      current = new Index(snapshot.version(), tools, List.copyOf(indexed), tokens);
+      index = current;
+      log.info(
+          "Indexed {} tools of catalog v{} for selection, {} embedded",
+          tools.size(),
+          snapshot.version(),
+          missing.size());
+      return current;
+    }
+  }
+
+  /** Embeds the tools of a new catalog version ahead of the first request that needs them. */
+  @Scheduled(fixedDelay = 15000)
+  public void refreshIndex() {
+    ToolCallbackService.Snapshot snapshot = toolCallbackService.getSnapshot();
+    if (!enabled || snapshot.tools().size() <= topN || index.version() == snapshot.version()) {
+      return;
+    }
+    try {
+      indexOf(snapshot);
+    } catch (RuntimeException e) {
+      log.warn("Failed to index tools for selection: {}", e.getMessage());
+    }
+  }
+
+  @Override
+  public String getMetricsName() {
+    return "toolSelection";
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("enabled", enabled);
+    metrics.put("topN", topN);
+    metrics.put("indexedVersion", index.version());
+    metrics.put("requests", requests.sum());
+    metrics.put("selections", selections.sum());
+    metrics.put("fallbacks", fallbacks.sum());
+    metrics.put("toolsOffered", toolsOffered.sum());
+    metrics.put("toolsSent", toolsSent.sum());
+    metrics.put("schemaTokensSaved", tokensSaved.sum());
+    return metrics;
+  }
+
+  @Scheduled(fixedRate = 60000)
+  public void logToolSelectionMetrics() {
+    log.info("Tool Selection: {}", getMetrics());
+  }
+}
@@ -0,0 +1,210 @@
+package com.alienpoop.poopmcpclient.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.alienpoop.poopmcpclient.service.OllamaNodePool.Kind;
+import com.alienpoop.poopmcpclient.service.OllamaNodePool.Node;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.observation.ObservationRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/** Routes real chat streams over two stub Ollama servers. */
+class OllamaNodePoolTest {
+
+  private StubOllama first;
+  private StubOllama second;
+  private OllamaNodePool pool;
+  private RoutingChatModel chatModel;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    first = new StubOllama();
+    second = new StubOllama();
+
+    pool = new OllamaNodePool();
+    ReflectionTestUtils.setField(pool, "toolCallingManager", ToolCallingManager.builder().build());
+    ReflectionTestUtils.setField(
+        pool,
+        "observationRegistry",
+        new StaticListableBeanFactory().getBeanProvider(ObservationRegistry.class));
+    ReflectionTestUtils.setField(pool, "nodeUrls", first.url() + "," + second.url());
+    ReflectionTestUtils.setField(pool, "chatModel", "test-model");
+    ReflectionTestUtils.setField(pool, "embeddingModel", "test-embedding");
+    ReflectionTestUtils.setField(pool, "keepAlive", "5m");
+    ReflectionTestUtils.setField(pool, "affinity", true);
+    ReflectionTestUtils.setField(pool, "affinityMaxSkew", 2);
+    ReflectionTestUtils.setField(pool, "healthTimeout", Duration.ofSeconds(2));
+    ReflectionTestUtils.setField(pool, "failureThreshold", 3);
+    ReflectionTestUtils.setField(pool, "latencyEjectFactor", 3.0);
+    ReflectionTestUtils.setField(pool, "latencyMinMs", 50L);
+    ReflectionTestUtils.setField(pool, "ejectDuration", Duration.ofSeconds(30));
+    pool.init();
+
+    chatModel = new RoutingChatModel();
+    ReflectionTestUtils.setField(chatModel, "pool", pool);
+  }
+
+  @AfterEach
+  void tearDown() {
+    first.stop();
+    second.stop();
+  }
+
+  @Test
+  void routesToTheNodeWithFewestOutstandingRequests() {
+    Node busy = pool.acquire(null);
+    for (int i = 0; i < 4; i++) {
+      Node node = pool.acquire(null);
+      assertThat(node).isNotSameAs(busy);
+      pool.release(node, Kind.CHAT, -1, null);
+    }
+    pool.release(busy, Kind.CHAT, -1, null);
+
+    for (int i = 0; i < 6; i++) {
+      stream();
+    }
+    assertThat(first.chats.get()).isEqualTo(3);
+    assertThat(second.chats.get()).isEqualTo(3);
+  }
+
+  @Test
+  void affinityFallsBackToTheLeastLoadedNodeBeyondTheSkew() {
+    Node sticky = pool.acquire("session-1");
+    pool.release(sticky, Kind.CHAT, -1, null);
+    for (int i = 0; i < 5; i++) {
+      Node node = pool.acquire("session-1");
+      assertThat(node).isSameAs(sticky);
+      pool.release(node, Kind.CHAT, -1, null);
+    }
+
+    // affinity-max-skew 为 2：粘滞节点最多比最空闲的节点多 2 个未完成请求
+    pool.acquire("session-1");
+    pool.acquire("session-1");
+    assertThat(pool.acquire("session-1")).isSameAs(sticky);
+    assertThat(pool.acquire("session-1")).isNotSameAs(sticky);
+  }
+
+  @Test
+  void marksANodeDownAfterConsecutiveFailures() throws InterruptedException {
+    first.chatStatus = 500;
+    for (int i = 0; i < 6; i++) {
+      stream();
+    }
+    assertThat(first.chats.get()).isEqualTo(3);
+    assertThat(metricsOf(first).get("healthy")).isEqualTo(false);
+
+    second.chats.set(0);
+    for (int i = 0; i < 4; i++) {
+      assertThat(stream()).isTrue();
+    }
+    assertThat(first.chats.get()).isEqualTo(3);
+    assertThat(second.chats.get()).isEqualTo(4);
+
+    first.chatStatus = 200;
+    pool.checkHealth();
+    for (int i = 0; i < 50 && !Boolean.TRUE.equals(metricsOf(first).get("healthy")); i++) {
+      Thread.sleep(20);
+    }
+    assertThat(metricsOf(first).get("healthy")).isEqualTo(true);
+  }
+
+  @Test
+  void ejectsANodeMuchSlowerThanTheOthers() {
+    first.delayMs = 200;
+    for (int i = 0; i < 12; i++) {
+      assertThat(stream()).isTrue();
+    }
+    assertThat(metricsOf(first).get("ejections")).isEqualTo(1L);
+
+    first.chats.set(0);
+    for (int i = 0; i < 4; i++) {
+      stream();
+    }
+    assertThat(first.chats.get()).isZero();
+  }
+
+  /** Streams one reply and reports whether it succeeded. */
+  private boolean stream() {
+    try {
+      chatModel.stream(new Prompt("hi")).blockLast(Duration.ofSeconds(10));
+      return true;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> metricsOf(StubOllama stub) {
+    return (Map<String, Object>) pool.getMetrics().get(stub.url());
+  }
+
+  /** Answers {@code /api/version} and streams a fixed reply from {@code /api/chat}. */
+  private static final class StubOllama {
+    private static final String CHUNK =
+        "{\"model\":\"test-model\",\"created_at\":\"2024-01-01T00:00:00Z\","
+            + "\"message\":{\"role\":\"assistant\",\"content\":\"%s\"},\"done\":%s}\n";
+
+    private final HttpServer server;
+    private final AtomicInteger chats = new AtomicInteger();
+    private volatile int chatStatus = 200;
+    private volatile long delayMs;
+
+    private StubOllama() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.createContext(
+          "/api/version", exchange -> respond(exchange, 200, "{\"version\":\"0\"}"));
+      server.createContext("/api/chat", this::chat);
+      server.start();
+    }
+
+    private String url() {
+      return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void chat(HttpExchange exchange) throws IOException {
+      exchange.getRequestBody().readAllBytes();
+      chats.incrementAndGet();
+      if (delayMs > 0) {
+        try {
+          Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (chatStatus != 200) {
+        respond(exchange, chatStatus, "{\"error\":\"stub failure\"}");
+        return;
+      }
+      respond(exchange, 200, String.format(CHUNK, "hi", false) + String.format(CHUNK, "", true));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+
+    private void stop() {
+      server.stop(0);
+    }
+  }
+}